@@ -8,6 +8,20 @@
     or in the "license" file accompanying this file. This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
  */
 import helloworld.HelloWorldSpeechlet;
+import historybuff.HistoryBuffSpeechlet;
+import IRfailchat.IRFailChatSpeechlet;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import minecrafthelper.MinecraftSpeechlet;
 
 import org.apache.log4j.BasicConfigurator;
 import org.eclipse.jetty.server.Connector;
@@ -20,8 +34,17 @@ import org.eclipse.jetty.server.SslConnectionFactory;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import savvyconsumer.SavvyConsumerSpeechlet;
+import scorekeeper.ScoreKeeperSpeechlet;
 import session.SessionSpeechlet;
+import spacegeek.SpaceGeekSpeechlet;
+import tidepooler.TidePoolerSpeechlet;
 
 import com.amazon.speech.Sdk;
 import com.amazon.speech.speechlet.Speechlet;
@@ -29,13 +52,64 @@ import com.amazon.speech.speechlet.servlet.SpeechletServlet;
 
 /**
  * Shared launcher for executing all sample skills within a single servlet container.
+ * <p>
+ * All skills share one bounded Jetty worker pool. Each skill is additionally capped to a number of
+ * concurrent requests so that a slow upstream service in one skill cannot occupy every worker
+ * thread. The pool and the caps can be tuned with the following system properties:
+ * <ul>
+ * <li>{@code launcher.maxThreads}: maximum number of worker threads</li>
+ * <li>{@code launcher.minThreads}: minimum number of worker threads</li>
+ * <li>{@code launcher.queueCapacity}: maximum number of jobs waiting for a worker thread</li>
+ * <li>{@code launcher.skillConcurrency}: default concurrent request cap for every skill</li>
+ * <li>{@code launcher.skillConcurrency.[path]}: cap for a single skill, e.g.
+ * {@code launcher.skillConcurrency.historybuff}</li>
+ * <li>{@code launcher.virtualThreads}: if true, run every request on its own virtual thread
+ * instead of the worker pool. Requires a Java runtime with virtual threads (21 or later); older
+ * runtimes log a warning and use the worker pool.</li>
+ * </ul>
+ * <p>
+ * In virtual thread mode a request blocked on an upstream fetch only holds a small heap allocated
+ * stack, so the number of in-flight requests is bounded by the per-skill caps rather than by the
+ * worker pool size. The thread pool settings are ignored in this mode.
  */
 public final class Launcher {
+    private static final Logger log = LoggerFactory.getLogger(Launcher.class);
+
     /**
      * port number for the jetty server.
      */
     private static final int PORT = 8888;
 
+    /**
+     * Default maximum number of worker threads shared by all skills.
+     */
+    private static final int DEFAULT_MAX_THREADS = 200;
+
+    /**
+     * Default minimum number of worker threads shared by all skills.
+     */
+    private static final int DEFAULT_MIN_THREADS = 8;
+
+    /**
+     * Default number of jobs allowed to wait for a worker thread before new jobs are rejected.
+     */
+    private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    /**
+     * Default maximum number of requests a single skill may serve concurrently.
+     */
+    private static final int DEFAULT_SKILL_CONCURRENCY = 50;
+
+    /**
+     * Idle time in milliseconds before a worker thread above the minimum is released.
+     */
+    private static final int THREAD_IDLE_TIMEOUT = 60000;
+
+    /**
+     * Prefix of the system properties used to configure the launcher.
+     */
+    private static final String PROPERTY_PREFIX = "launcher.";
+
     /**
      * Security scheme to use.
      */
@@ -60,7 +134,7 @@ public final class Launcher {
         BasicConfigurator.configure();
 
         // Configure server and its associated servlets
-        Server server = new Server();
+        Server server = new Server(createThreadPool());
         SslConnectionFactory sslConnectionFactory = new SslConnectionFactory();
         SslContextFactory sslContextFactory = sslConnectionFactory.getSslContextFactory();
         sslContextFactory.setKeyStorePath(System.getProperty("javax.net.ssl.keyStore"));
@@ -84,15 +158,130 @@ public final class Launcher {
         ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
         context.setContextPath("/");
         server.setHandler(context);
-        context.addServlet(new ServletHolder(createServlet(new HelloWorldSpeechlet())), "/hello");
-        context.addServlet(new ServletHolder(createServlet(new SessionSpeechlet())), "/session");
+        addSpeechlet(context, "hello", new HelloWorldSpeechlet());
+        addSpeechlet(context, "session", new SessionSpeechlet());
+        addSpeechlet(context, "spacegeek", new SpaceGeekSpeechlet());
+        addSpeechlet(context, "minecrafthelper", new MinecraftSpeechlet());
+        addSpeechlet(context, "irfailchat", new IRFailChatSpeechlet());
+        addSpeechlet(context, "historybuff", new HistoryBuffSpeechlet());
+        addSpeechlet(context, "tidepooler", new TidePoolerSpeechlet());
+        addSpeechlet(context, "savvyconsumer", new SavvyConsumerSpeechlet());
+        addSpeechlet(context, "scorekeeper", new ScoreKeeperSpeechlet());
         server.start();
         server.join();
     }
 
-    private static SpeechletServlet createServlet(final Speechlet speechlet) {
-        SpeechletServlet servlet = new SpeechletServlet();
+    /**
+     * Creates the thread pool that runs the requests for all skills, either a bounded worker pool
+     * or a virtual thread per request executor if {@code launcher.virtualThreads} is set.
+     */
+    private static ThreadPool createThreadPool() {
+        if (Boolean.getBoolean(PROPERTY_PREFIX + "virtualThreads")) {
+            ExecutorService executor = createVirtualThreadExecutor();
+            if (executor != null) {
+                log.info("Running requests on virtual threads");
+                return new ExecutorThreadPool(executor);
+            }
+            log.warn("Virtual threads are not supported by Java {}, using the worker pool",
+                    System.getProperty("java.version"));
+        }
+
+        int maxThreads = getIntProperty("maxThreads", DEFAULT_MAX_THREADS);
+        int minThreads = getIntProperty("minThreads", DEFAULT_MIN_THREADS);
+        int queueCapacity = getIntProperty("queueCapacity", DEFAULT_QUEUE_CAPACITY);
+        QueuedThreadPool threadPool =
+                new QueuedThreadPool(maxThreads, minThreads, THREAD_IDLE_TIMEOUT,
+                        new ArrayBlockingQueue<Runnable>(queueCapacity));
+        threadPool.setName("skills");
+        log.info("Worker pool maxThreads={}, minThreads={}, queueCapacity={}", maxThreads,
+                minThreads, queueCapacity);
+        return threadPool;
+    }
+
+    /**
+     * Looks up {@code Executors.newVirtualThreadPerTaskExecutor()} reflectively so the launcher
+     * still compiles and runs on runtimes without virtual threads.
+     *
+     * @return a virtual thread per task executor, or null if the runtime does not support it
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (ReflectiveOperationException e) {
+            log.warn("Unable to create virtual thread executor", e);
+            return null;
+        }
+    }
+
+    /**
+     * Mounts a speechlet on "/[path]", capped to its configured number of concurrent requests.
+     */
+    private static void addSpeechlet(final ServletContextHandler context, final String path,
+            final Speechlet speechlet) {
+        int maxConcurrency =
+                getIntProperty("skillConcurrency." + path,
+                        getIntProperty("skillConcurrency", DEFAULT_SKILL_CONCURRENCY));
+        context.addServlet(new ServletHolder(createServlet(speechlet, maxConcurrency)), "/" + path);
+        log.info("Mounted {} on /{} with maxConcurrency={}", speechlet.getClass().getSimpleName(),
+                path, maxConcurrency);
+    }
+
+    private static SpeechletServlet createServlet(final Speechlet speechlet,
+            final int maxConcurrency) {
+        SpeechletServlet servlet = new ConcurrencyLimitedSpeechletServlet(maxConcurrency);
         servlet.setSpeechlet(speechlet);
         return servlet;
     }
+
+    /**
+     * Reads an integer launcher setting from the system properties, falling back to the default
+     * value if the property is missing or malformed.
+     */
+    private static int getIntProperty(final String name, final int defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value {} for {}{}", value, PROPERTY_PREFIX, name);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * A {@link SpeechletServlet} that serves at most a fixed number of requests at a time. Requests
+     * above the cap are rejected right away with a 503 instead of waiting, so they do not hold on
+     * to a shared worker thread.
+     */
+    private static final class ConcurrencyLimitedSpeechletServlet extends SpeechletServlet {
+        private static final long serialVersionUID = 4106279186284937853L;
+
+        private final Semaphore permits;
+
+        private ConcurrencyLimitedSpeechletServlet(final int maxConcurrency) {
+            this.permits = new Semaphore(maxConcurrency);
+        }
+
+        @Override
+        protected void doPost(final HttpServletRequest request, final HttpServletResponse response)
+                throws IOException {
+            if (!permits.tryAcquire()) {
+                log.warn("Rejecting request for {}, concurrency limit reached", getSpeechlet()
+                        .getClass()
+                        .getSimpleName());
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+            try {
+                super.doPost(request, response);
+            } finally {
+                permits.release();
+            }
+        }
+    }
 }
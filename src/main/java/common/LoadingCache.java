@@ -0,0 +1,279 @@
+/**
+    Copyright 2014-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+    Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License. A copy of the License is located at
+
+        http://aws.amazon.com/apache2.0/
+
+    or in the "license" file accompanying this file. This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded in-process cache that loads missing values on demand.
+ * <p>
+ * Entries expire a fixed time after they were loaded, unless a subclass overrides
+ * {@link #getExpiryTime(Object, Object, long)}, and the least recently used entry is evicted once
+ * the cache is full. Concurrent misses for the same key are coalesced: the first caller runs
+ * the {@link Loader} and the others wait for its result. A failed load is not cached, so the next
+ * caller retries.
+ *
+ * @param <K>
+ *            type of the keys
+ * @param <V>
+ *            type of the cached values
+ */
+public class LoadingCache<K, V> {
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Loader<K, V> loader;
+    private final Map<K, Entry<V>> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSize
+     *            maximum number of entries kept in the cache
+     * @param ttlMillis
+     *            time in milliseconds after which a loaded entry expires
+     * @param loader
+     *            loads the value for a missing or expired key
+     */
+    public LoadingCache(final int maxSize, final long ttlMillis, final Loader<K, V> loader) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.loader = loader;
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = -2853284474407366254L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > LoadingCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the value for the key, loading it if it is missing or expired.
+     *
+     * @param key
+     *            the key
+     * @return the cached or freshly loaded value
+     * @throws ExecutionException
+     *             if the loader failed
+     */
+    public V get(final K key) throws ExecutionException {
+        Entry<V> entry;
+        boolean owner = false;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+                entry = new Entry<V>(newLoadTask(key));
+                entries.put(key, entry);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            misses.incrementAndGet();
+            entry.task.run();
+        } else {
+            hits.incrementAndGet();
+        }
+        return await(key, entry);
+    }
+
+    /**
+     * Returns the value for the key if it is loaded and not expired, without loading it.
+     *
+     * @param key
+     *            the key
+     * @return the cached value, or null if there is none
+     */
+    public V getIfPresent(final K key) {
+        Entry<V> entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry == null || !entry.task.isDone() || entry.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        try {
+            return entry.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores a value that was loaded outside of the cache, for instance as a side result of
+     * loading another key, replacing any existing entry for the key.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value, never null
+     */
+    public void put(final K key, final V value) {
+        FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+            @Override
+            public V call() {
+                return value;
+            }
+        });
+        task.run();
+        Entry<V> entry = new Entry<V>(task);
+        entry.loaded(getExpiryTime(key, value, System.currentTimeMillis()));
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Removes the entry for the key, if any.
+     *
+     * @param key
+     *            the key
+     */
+    public void invalidate(final K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Returns the number of entries currently held, including loads in progress.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Returns the number of lookups served from the cache, including callers that waited for a
+     * load started by another caller.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that had to load the value.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the time at which a freshly loaded value expires. Defaults to the load time plus the
+     * TTL given to the constructor.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the loaded value
+     * @param loadTime
+     *            time in milliseconds at which the value was loaded
+     * @return time in milliseconds at which the value expires
+     */
+    protected long getExpiryTime(final K key, final V value, final long loadTime) {
+        return loadTime + ttlMillis;
+    }
+
+    private FutureTask<V> newLoadTask(final K key) {
+        return new FutureTask<V>(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                return loader.load(key);
+            }
+        });
+    }
+
+    /**
+     * Waits for the entry to be loaded, stamping its expiry or removing it if the load failed.
+     */
+    private V await(final K key, final Entry<V> entry) throws ExecutionException {
+        try {
+            V value = entry.task.get();
+            entry.loaded(getExpiryTime(key, value, System.currentTimeMillis()));
+            return value;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        } catch (ExecutionException e) {
+            synchronized (entries) {
+                if (entries.get(key) == entry) {
+                    entries.remove(key);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Loads the value for a key.
+     *
+     * @param <K>
+     *            type of the keys
+     * @param <V>
+     *            type of the loaded values
+     */
+    public interface Loader<K, V> {
+        /**
+         * Loads the value for the key.
+         *
+         * @param key
+         *            the key
+         * @return the value, never null
+         * @throws Exception
+         *             if the value cannot be loaded
+         */
+        V load(K key) throws Exception;
+    }
+
+    /**
+     * A cached value, or a load in progress.
+     */
+    private static final class Entry<V> {
+        private final FutureTask<V> task;
+
+        /**
+         * Time in milliseconds when the entry expires, or {@link Long#MAX_VALUE} while loading.
+         */
+        private volatile long expiresAt = Long.MAX_VALUE;
+
+        private Entry(final FutureTask<V> task) {
+            this.task = task;
+        }
+
+        private void loaded(final long expiry) {
+            if (expiresAt == Long.MAX_VALUE) {
+                expiresAt = expiry;
+            }
+        }
+
+        private boolean isExpired(final long now) {
+            return now >= expiresAt;
+        }
+    }
+}
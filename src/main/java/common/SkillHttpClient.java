@@ -0,0 +1,222 @@
+/**
+    Copyright 2014-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+    Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License. A copy of the License is located at
+
+        http://aws.amazon.com/apache2.0/
+
+    or in the "license" file accompanying this file. This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Shared HTTP client for the outbound calls made by the sample skills.
+ * <p>
+ * Connections are kept alive and pooled across requests, so repeated calls to the same upstream
+ * service skip the TCP and TLS handshakes. Every call is bounded by connect, read and pool
+ * checkout timeouts, and gzip compressed responses are requested and decoded transparently. The
+ * limits can be tuned with the following system properties:
+ * <ul>
+ * <li>{@code skills.http.maxConnections}: maximum number of pooled connections</li>
+ * <li>{@code skills.http.maxConnectionsPerHost}: maximum number of pooled connections per host</li>
+ * <li>{@code skills.http.connectTimeout}: connect timeout in milliseconds</li>
+ * <li>{@code skills.http.readTimeout}: socket read timeout in milliseconds</li>
+ * </ul>
+ */
+public final class SkillHttpClient {
+    private static final Logger log = LoggerFactory.getLogger(SkillHttpClient.class);
+
+    /**
+     * Default maximum number of pooled connections across all hosts.
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS = 200;
+
+    /**
+     * Default maximum number of pooled connections to a single host.
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 50;
+
+    /**
+     * Default connect timeout in milliseconds.
+     */
+    private static final int DEFAULT_CONNECT_TIMEOUT = 2000;
+
+    /**
+     * Default socket read timeout in milliseconds.
+     */
+    private static final int DEFAULT_READ_TIMEOUT = 5000;
+
+    /**
+     * Prefix of the system properties used to configure the client.
+     */
+    private static final String PROPERTY_PREFIX = "skills.http.";
+
+    private static final SkillHttpClient INSTANCE = new SkillHttpClient();
+
+    private final CloseableHttpClient httpClient;
+
+    private SkillHttpClient() {
+        int connectTimeout = getIntProperty("connectTimeout", DEFAULT_CONNECT_TIMEOUT);
+        int readTimeout = getIntProperty("readTimeout", DEFAULT_READ_TIMEOUT);
+
+        PoolingHttpClientConnectionManager connectionManager =
+                new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(getIntProperty("maxConnections", DEFAULT_MAX_CONNECTIONS));
+        connectionManager.setDefaultMaxPerRoute(getIntProperty("maxConnectionsPerHost",
+                DEFAULT_MAX_CONNECTIONS_PER_HOST));
+
+        // Waiting for a pooled connection counts against the connect timeout, so a saturated
+        // pool fails fast instead of queueing callers indefinitely.
+        RequestConfig requestConfig =
+                RequestConfig
+                        .custom()
+                        .setConnectionRequestTimeout(connectTimeout)
+                        .setConnectTimeout(connectTimeout)
+                        .setSocketTimeout(readTimeout)
+                        .build();
+
+        // HttpClientBuilder adds "Accept-Encoding: gzip,deflate" and decodes compressed bodies
+        // unless content compression is explicitly disabled.
+        httpClient =
+                HttpClientBuilder
+                        .create()
+                        .setConnectionManager(connectionManager)
+                        .setDefaultRequestConfig(requestConfig)
+                        .disableCookieManagement()
+                        .build();
+    }
+
+    /**
+     * Returns the client shared by all skills.
+     *
+     * @return the shared {@link SkillHttpClient}
+     */
+    public static SkillHttpClient getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Issues a GET request and hands the response body to the given reader. The connection is
+     * returned to the pool once the reader returns. If the reader stops before the end of the body,
+     * or fails, the connection is dropped instead of downloading the rest of the body.
+     *
+     * @param url
+     *            the URL to fetch
+     * @param reader
+     *            consumes the response body
+     * @return the value produced by the reader
+     * @throws IOException
+     *             if the request fails, times out or returns a non 2xx status
+     */
+    public <T> T get(final String url, final ResponseReader<T> reader) throws IOException {
+        HttpGet request = new HttpGet(url);
+        CloseableHttpResponse response = httpClient.execute(request);
+        InputStream body = null;
+        boolean fullyRead = false;
+        try {
+            int statusCode = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            if (statusCode < 200 || statusCode >= 300 || entity == null) {
+                // error bodies are short, reading them keeps the connection
+                fullyRead = true;
+                throw new IOException("Unexpected response " + response.getStatusLine()
+                        + " for " + request.getURI().getHost());
+            }
+            body = entity.getContent();
+            T value = reader.read(body);
+            fullyRead = isAtEnd(body);
+            return value;
+        } finally {
+            if (!fullyRead) {
+                request.abort();
+            }
+            // Closing the body drains any unread content so the connection goes back to the pool.
+            IOUtils.closeQuietly(body);
+            IOUtils.closeQuietly(response);
+        }
+    }
+
+    /**
+     * Issues a GET request and returns the response body as a String.
+     *
+     * @param url
+     *            the URL to fetch
+     * @param charset
+     *            the charset used to decode the body
+     * @return the response body
+     * @throws IOException
+     *             if the request fails, times out or returns a non 2xx status
+     */
+    public String getString(final String url, final Charset charset) throws IOException {
+        return get(url, new ResponseReader<String>() {
+            @Override
+            public String read(InputStream body) throws IOException {
+                return IOUtils.toString(body, charset);
+            }
+        });
+    }
+
+    /**
+     * Returns true if a response body has been read to the end, so that closing it does not
+     * download anything more.
+     */
+    private static boolean isAtEnd(final InputStream body) {
+        try {
+            return body.read() == -1;
+        } catch (IOException e) {
+            // closed by the reader
+            return true;
+        }
+    }
+
+    /**
+     * Reads an integer client setting from the system properties, falling back to the default
+     * value if the property is missing or malformed.
+     */
+    private static int getIntProperty(final String name, final int defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value {} for {}{}", value, PROPERTY_PREFIX, name);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Consumes the body of a successful response.
+     *
+     * @param <T>
+     *            type of the value read from the body
+     */
+    public interface ResponseReader<T> {
+        /**
+         * Reads the response body. The stream is closed by the caller.
+         *
+         * @param body
+         *            the response body
+         * @return the value read from the body
+         * @throws IOException
+         *             if the body cannot be read
+         */
+        T read(InputStream body) throws IOException;
+    }
+}
@@ -9,22 +9,13 @@
  */
 package historybuff;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Date;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -90,23 +81,11 @@ import com.amazon.speech.ui.SimpleCard;
 public class HistoryBuffSpeechlet implements Speechlet {
     private static final Logger log = LoggerFactory.getLogger(HistoryBuffSpeechlet.class);
 
-    /**
-     * URL prefix to download history content from Wikipedia.
-     */
-    private static final String URL_PREFIX =
-            "https://en.wikipedia.org/w/api.php?action=query&prop=extracts"
-                    + "&format=json&explaintext=&exsectionformat=plain&redirects=&titles=";
-
     /**
      * Constant defining number of events to be read at one time.
      */
     private static final int PAGINATION_SIZE = 3;
 
-    /**
-     * Length of the delimiter between individual events.
-     */
-    private static final int DELIMITER_SIZE = 2;
-
     /**
      * Constant defining session attribute key for the event index.
      */
@@ -118,14 +97,23 @@ public class HistoryBuffSpeechlet implements Speechlet {
     private static final String SESSION_TEXT = "text";
 
     /**
-     * Constant defining session attribute key for the intent slot key for the date of events.
+     * Constant defining session attribute key for the day of the events, example: August_30.
      */
-    private static final String SLOT_DAY = "day";
+    private static final String SESSION_DAY = "day";
+
+    /**
+     * If true, the session only carries the day and the index of the next event, and follow-up
+     * turns read the events from the shared {@link HistoryEventStore}. Otherwise the whole list of
+     * events is stored in the session attributes. Set with the {@code historybuff.sessionCursor}
+     * system property.
+     */
+    private static final boolean SESSION_CURSOR =
+            Boolean.parseBoolean(System.getProperty("historybuff.sessionCursor", "true"));
 
     /**
-     * Size of events from Wikipedia response.
+     * Constant defining session attribute key for the intent slot key for the date of events.
      */
-    private static final int SIZE_OF_EVENTS = 10;
+    private static final String SLOT_DAY = "day";
 
     /**
      * Array of month names.
@@ -145,6 +133,8 @@ public class HistoryBuffSpeechlet implements Speechlet {
             "December"
     };
 
+    private final HistoryEventStore eventStore = HistoryEventStore.getInstance();
+
     @Override
     public void onSessionStarted(final SessionStartedRequest request, final Session session)
             throws SpeechletException {
@@ -271,7 +261,7 @@ public class HistoryBuffSpeechlet implements Speechlet {
         String cardPrefixContent = "For " + month + " " + date + ", ";
         String cardTitle = "Events on " + month + " " + date;
 
-        ArrayList<String> events = getJsonEventsFromWikipedia(month, date);
+        List<String> events = eventStore.getEvents(month, date);
         String speechOutput = "";
         if (events.isEmpty()) {
             speechOutput =
@@ -309,10 +299,17 @@ public class HistoryBuffSpeechlet implements Speechlet {
             card.setTitle(cardTitle);
             card.setContent(cardOutputBuilder.toString());
 
-            // After reading the first 3 events, set the count to 3 and add the events
-            // to the session attributes
+            // After reading the first 3 events, set the count to 3 and add the day (or the
+            // events themselves) to the session attributes
             session.setAttribute(SESSION_INDEX, PAGINATION_SIZE);
-            session.setAttribute(SESSION_TEXT, events);
+            // A day asked for earlier in the session must not shadow this one
+            if (SESSION_CURSOR) {
+                session.setAttribute(SESSION_DAY, HistoryEventStore.getDayKey(month, date));
+                session.removeAttribute(SESSION_TEXT);
+            } else {
+                session.setAttribute(SESSION_TEXT, events);
+                session.removeAttribute(SESSION_DAY);
+            }
 
             SpeechletResponse response = newAskResponse("<speak>" + speechOutput + "</speak>", "<speak>" + repromptText + "</speak>");
             response.setCard(card);
@@ -324,20 +321,21 @@ public class HistoryBuffSpeechlet implements Speechlet {
      * Prepares the speech to reply to the user. Obtains the list of events as well as the current
      * index from the session attributes. After getting the next set of events, increment the index
      * and store it back in session attributes. This allows us to obtain new events without making
-     * repeated network calls, by storing values (events, index) during the interaction with the
-     * user.
+     * repeated network calls, by storing values (day or events, index) during the interaction with
+     * the user and reading the events of the day from the shared {@link HistoryEventStore}.
      * 
      * @param session
-     *            object containing session attributes with events list and index
+     *            object containing session attributes with the day or events list and index
      * @return SpeechletResponse object with voice/card response to return to the user
      */
     private SpeechletResponse handleNextEventRequest(Session session) {
         String cardTitle = "More events on this day in history";
-        ArrayList<String> events = (ArrayList<String>) session.getAttribute(SESSION_TEXT);
-        int index = (int) session.getAttribute(SESSION_INDEX);
+        List<String> events = getSessionEvents(session);
+        Integer sessionIndex = (Integer) session.getAttribute(SESSION_INDEX);
+        int index = sessionIndex != null ? sessionIndex : 0;
         String speechOutput = "";
         String cardOutput = "";
-        if (events == null) {
+        if (events == null || events.isEmpty()) {
             speechOutput =
                     "With History Buff, you can get historical events for any day of the year."
                             + " For example, you could say today, or August thirtieth."
@@ -378,78 +376,15 @@ public class HistoryBuffSpeechlet implements Speechlet {
     }
 
     /**
-     * Download JSON-formatted list of events from Wikipedia, for a defined day/date, and return a
-     * String array of the events, with each event representing an element in the array.
-     * 
-     * @param month
-     *            the month to get events for, example: April
-     * @param date
-     *            the date to get events for, example: 7
-     * @return String array of events for that date, 1 event per element of the array
-     */
-    private ArrayList<String> getJsonEventsFromWikipedia(String month, String date) {
-        InputStreamReader inputStream = null;
-        BufferedReader bufferedReader = null;
-        String text = "";
-        try {
-            String line;
-            URL url = new URL(URL_PREFIX + month + "_" + date);
-            inputStream = new InputStreamReader(url.openStream(), Charset.forName("US-ASCII"));
-            bufferedReader = new BufferedReader(inputStream);
-            StringBuilder builder = new StringBuilder();
-            while ((line = bufferedReader.readLine()) != null) {
-                builder.append(line);
-            }
-            text = builder.toString();
-        } catch (IOException e) {
-            // reset text variable to a blank string
-            text = "";
-        } finally {
-            IOUtils.closeQuietly(inputStream);
-            IOUtils.closeQuietly(bufferedReader);
-        }
-        return parseJson(text);
-    }
-
-    /**
-     * Parse JSON-formatted list of events/births/deaths from Wikipedia, extract list of events and
-     * split the events into a String array of individual events. Run Regex matchers to make the
-     * list pretty by adding a comma after the year to add a pause, and by removing a unicode char.
-     * 
-     * @param text
-     *            the JSON formatted list of events/births/deaths for a certain date
-     * @return String array of events for that date, 1 event per element of the array
+     * Returns the events of the day the user asked for in this session, or null if there is none.
+     * Sessions started before the cursor mode was enabled still carry the events themselves.
      */
-    private ArrayList<String> parseJson(String text) {
-        // sizeOf (\nEvents\n) is 10
-        text =
-                text.substring(text.indexOf("\\nEvents\\n") + SIZE_OF_EVENTS,
-                        text.indexOf("\\n\\n\\nBirths"));
-        ArrayList<String> events = new ArrayList<String>();
-        if (text.isEmpty()) {
-            return events;
-        }
-        int startIndex = 0, endIndex = 0;
-        while (endIndex != -1) {
-            endIndex = text.indexOf("\\n", startIndex + DELIMITER_SIZE);
-            String eventText =
-                    (endIndex == -1 ? text.substring(startIndex) : text.substring(startIndex,
-                            endIndex));
-            // replace dashes returned in text from Wikipedia's API
-            Pattern pattern = Pattern.compile("\\\\u2013\\s*");
-            Matcher matcher = pattern.matcher(eventText);
-            eventText = matcher.replaceAll("");
-            // add comma after year so Alexa pauses before continuing with the sentence
-            pattern = Pattern.compile("(^\\d+)");
-            matcher = pattern.matcher(eventText);
-            if (matcher.find()) {
-                eventText = matcher.replaceFirst(matcher.group(1) + ",");
-            }
-            eventText = "In " + eventText;
-            startIndex = endIndex + 2;
-            events.add(eventText);
+    @SuppressWarnings("unchecked")
+    private List<String> getSessionEvents(Session session) {
+        List<String> events = (List<String>) session.getAttribute(SESSION_TEXT);
+        if (events == null && session.getAttribute(SESSION_DAY) != null) {
+            events = eventStore.getEventsForDay((String) session.getAttribute(SESSION_DAY));
         }
-        Collections.reverse(events);
         return events;
     }
 
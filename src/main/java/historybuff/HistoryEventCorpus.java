@@ -0,0 +1,293 @@
+/**
+    Copyright 2014-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+    Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License. A copy of the License is located at
+
+        http://aws.amazon.com/apache2.0/
+
+    or in the "license" file accompanying this file. This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package historybuff;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.BasicConfigurator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A precomputed, read-only corpus of the events for every day of the year.
+ * <p>
+ * The corpus is compiled once by running this class as a program, which fetches all 366 day pages
+ * from Wikipedia and writes them into a compact binary file:
+ *
+ * <pre>
+ * java historybuff.HistoryEventCorpus /path/to/events.corpus
+ * </pre>
+ *
+ * The file is memory-mapped when it is opened, and events are decoded straight from the mapping, so
+ * serving a day needs no network I/O. The file layout is:
+ *
+ * <pre>
+ * int    magic, "HBEC"
+ * int    format version
+ * int    number of days
+ * days   for each day: UTF-8 key (short length + bytes), int offset of its events
+ * events for each day: int number of events, then each event as int length + UTF-8 bytes
+ * </pre>
+ */
+public final class HistoryEventCorpus {
+    private static final Logger log = LoggerFactory.getLogger(HistoryEventCorpus.class);
+
+    private static final int MAGIC = 0x48424543;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A leap year, so the builder visits February 29th.
+     */
+    private static final int LEAP_YEAR = 2016;
+
+    /**
+     * Pause between two page fetches while building the corpus, to stay under Wikipedia's rate
+     * limits.
+     */
+    private static final long FETCH_DELAY_MILLIS = 250;
+
+    private final ByteBuffer data;
+    private final Map<String, Integer> offsets;
+
+    private HistoryEventCorpus(ByteBuffer data, Map<String, Integer> offsets) {
+        this.data = data;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Opens and memory-maps a corpus file.
+     *
+     * @param file
+     *            the corpus file
+     * @return the corpus
+     * @throws IOException
+     *             if the file cannot be read or is not a corpus file
+     */
+    public static HistoryEventCorpus open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        MappedByteBuffer data;
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // the mapping stays valid after the channel is closed
+            IOUtils.closeQuietly(randomAccessFile);
+        }
+
+        try {
+            return new HistoryEventCorpus(data, readOffsets(file, data));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException(file + " is truncated or corrupt", e);
+        }
+    }
+
+    /**
+     * Reads the index of a corpus, and checks that the events of every day lie within the file,
+     * so that {@link #getEvents(String)} never reads past its end.
+     */
+    private static Map<String, Integer> readOffsets(File file, ByteBuffer data)
+            throws IOException {
+        if (data.limit() < 3 * 4 || data.getInt() != MAGIC || data.getInt() != FORMAT_VERSION) {
+            throw new IOException(file + " is not a version " + FORMAT_VERSION
+                    + " event corpus");
+        }
+        int dayCount = data.getInt();
+        if (dayCount < 0 || dayCount > data.remaining() / (2 + 4)) {
+            throw new IOException(file + " has an invalid number of days: " + dayCount);
+        }
+
+        Map<String, Integer> offsets = new HashMap<String, Integer>(dayCount * 2);
+        for (int i = 0; i < dayCount; i++) {
+            byte[] key = new byte[data.getShort() & 0xFFFF];
+            data.get(key);
+            offsets.put(new String(key, UTF8), data.getInt());
+        }
+
+        for (Map.Entry<String, Integer> day : offsets.entrySet()) {
+            int offset = day.getValue().intValue();
+            if (offset < data.position() || offset > data.limit() - 4) {
+                throw new IOException(file + " has an invalid offset for " + day.getKey());
+            }
+            ByteBuffer events = data.duplicate();
+            events.position(offset);
+            int eventCount = events.getInt();
+            if (eventCount < 0) {
+                throw new IOException(file + " has an invalid event count for " + day.getKey());
+            }
+            for (int i = 0; i < eventCount; i++) {
+                int length = events.getInt();
+                if (length < 0 || length > events.remaining()) {
+                    throw new IOException(file + " has an invalid event for " + day.getKey());
+                }
+                events.position(events.position() + length);
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * Returns the number of days in the corpus.
+     *
+     * @return the number of days
+     */
+    public int getDayCount() {
+        return offsets.size();
+    }
+
+    /**
+     * Returns the events for a day, most recent first.
+     *
+     * @param dayKey
+     *            the day, as returned by {@link HistoryEventStore#getDayKey(String, String)}
+     * @return unmodifiable list of events, or null if the day is not in the corpus
+     */
+    public List<String> getEvents(String dayKey) {
+        Integer offset = offsets.get(dayKey);
+        if (offset == null) {
+            return null;
+        }
+        // each reader needs its own position
+        ByteBuffer buffer = data.duplicate();
+        buffer.position(offset);
+        int eventCount = buffer.getInt();
+        List<String> events = new ArrayList<String>(eventCount);
+        for (int i = 0; i < eventCount; i++) {
+            byte[] event = new byte[buffer.getInt()];
+            buffer.get(event);
+            events.add(new String(event, UTF8));
+        }
+        return Collections.unmodifiableList(events);
+    }
+
+    /**
+     * Writes a corpus file. The corpus is written to a temporary file which then replaces the
+     * file, so a server that has the previous corpus mapped keeps reading it undisturbed.
+     *
+     * @param file
+     *            the file to write
+     * @param eventsByDay
+     *            the events of each day, most recent first
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public static void write(File file, Map<String, List<String>> eventsByDay) throws IOException {
+        // lay out the events first, so the index can point at them
+        ByteArrayOutputStream eventBytes = new ByteArrayOutputStream();
+        DataOutputStream events = new DataOutputStream(eventBytes);
+        Map<String, Integer> relativeOffsets = new LinkedHashMap<String, Integer>();
+        for (Map.Entry<String, List<String>> day : eventsByDay.entrySet()) {
+            relativeOffsets.put(day.getKey(), events.size());
+            events.writeInt(day.getValue().size());
+            for (String event : day.getValue()) {
+                byte[] bytes = event.getBytes(UTF8);
+                events.writeInt(bytes.length);
+                events.write(bytes);
+            }
+        }
+
+        int headerSize = 3 * 4;
+        for (String dayKey : relativeOffsets.keySet()) {
+            headerSize += 2 + dayKey.getBytes(UTF8).length + 4;
+        }
+
+        File tempFile =
+                File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        boolean written = false;
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(relativeOffsets.size());
+            for (Map.Entry<String, Integer> day : relativeOffsets.entrySet()) {
+                byte[] key = day.getKey().getBytes(UTF8);
+                out.writeShort(key.length);
+                out.write(key);
+                out.writeInt(headerSize + day.getValue());
+            }
+            eventBytes.writeTo(out);
+            out.close();
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            written = true;
+        } finally {
+            IOUtils.closeQuietly(out);
+            if (!written && !tempFile.delete()) {
+                log.warn("Unable to delete {}", tempFile);
+            }
+        }
+    }
+
+    /**
+     * Fetches every day of the year from Wikipedia and writes the corpus file.
+     *
+     * @param args
+     *            the path of the corpus file to write
+     * @throws Exception
+     *             if anything goes wrong.
+     */
+    public static void main(final String[] args) throws Exception {
+        BasicConfigurator.configure();
+        if (args.length != 1) {
+            System.err.println("Usage: HistoryEventCorpus <corpus file>");
+            System.exit(1);
+        }
+
+        DateFormat monthFormat = new SimpleDateFormat("MMMM", Locale.US);
+        Calendar calendar = Calendar.getInstance(Locale.US);
+        calendar.clear();
+        calendar.set(LEAP_YEAR, Calendar.JANUARY, 1);
+
+        Map<String, List<String>> eventsByDay = new LinkedHashMap<String, List<String>>();
+        while (calendar.get(Calendar.YEAR) == LEAP_YEAR) {
+            String dayKey =
+                    HistoryEventStore.getDayKey(monthFormat.format(calendar.getTime()),
+                            Integer.toString(calendar.get(Calendar.DATE)));
+            try {
+                eventsByDay.put(dayKey, HistoryEventStore.getJsonEventsFromWikipedia(dayKey));
+            } catch (IOException e) {
+                log.error("Skipping {}", dayKey, e);
+            }
+            calendar.add(Calendar.DATE, 1);
+            Thread.sleep(FETCH_DELAY_MILLIS);
+        }
+
+        File file = new File(args[0]);
+        write(file, eventsByDay);
+        log.info("Wrote {} days to {}", eventsByDay.size(), file);
+    }
+}
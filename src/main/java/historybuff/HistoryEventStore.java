@@ -0,0 +1,286 @@
+/**
+    Copyright 2014-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+    Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License. A copy of the License is located at
+
+        http://aws.amazon.com/apache2.0/
+
+    or in the "license" file accompanying this file. This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package historybuff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import common.LoadingCache;
+import common.SkillHttpClient;
+
+/**
+ * Provides the list of events for a day of the year, shared by all History Buff sessions.
+ * <p>
+ * There are only 366 possible days, so parsed event lists are cached in process and reused by
+ * every request for the same day. Concurrent requests for a day that is not cached yet trigger a
+ * single Wikipedia fetch. A background job keeps today's and tomorrow's entries warm in each time
+ * zone listed in the {@code historybuff.prefetch.timeZones} system property (comma separated time
+ * zone IDs, defaulting to the server time zone), so the first request after midnight does not pay
+ * for the fetch. Set {@code historybuff.prefetch} to false to disable the background job.
+ * <p>
+ * If the {@code historybuff.corpus} system property points to a {@link HistoryEventCorpus} file,
+ * days are served from the corpus and Wikipedia is only called for days missing from it.
+ */
+public final class HistoryEventStore {
+    private static final Logger log = LoggerFactory.getLogger(HistoryEventStore.class);
+
+    /**
+     * URL prefix to download history content from Wikipedia.
+     */
+    private static final String URL_PREFIX =
+            "https://en.wikipedia.org/w/api.php?action=query&prop=extracts"
+                    + "&format=json&explaintext=&exsectionformat=plain&redirects=&titles=";
+
+    /**
+     * Maximum number of days kept in the cache, one per day of a leap year.
+     */
+    private static final int CACHE_MAX_SIZE = 366;
+
+    /**
+     * Time after which a cached day is fetched again. The pages change rarely.
+     */
+    private static final long CACHE_TTL_MILLIS = TimeUnit.HOURS.toMillis(12);
+
+    /**
+     * Interval between two runs of the background prefetch job.
+     */
+    private static final long PREFETCH_INTERVAL_MINUTES = 30;
+
+    private final HistoryEventCorpus corpus;
+
+    private final LoadingCache<String, List<String>> cache;
+
+    private HistoryEventStore() {
+        corpus = openCorpus(System.getProperty("historybuff.corpus"));
+        cache =
+                new LoadingCache<String, List<String>>(CACHE_MAX_SIZE, CACHE_TTL_MILLIS,
+                        new LoadingCache.Loader<String, List<String>>() {
+                            @Override
+                            public List<String> load(String dayKey) throws IOException {
+                                List<String> events =
+                                        corpus != null ? corpus.getEvents(dayKey) : null;
+                                if (events != null) {
+                                    return events;
+                                }
+                                return Collections.unmodifiableList(getJsonEventsFromWikipedia(
+                                        dayKey));
+                            }
+                        });
+
+        // the corpus already serves every day without network I/O
+        if (corpus == null
+                && Boolean.parseBoolean(System.getProperty("historybuff.prefetch", "true"))) {
+            startPrefetch(getPrefetchTimeZones());
+        }
+    }
+
+    /**
+     * Returns the store shared by all History Buff sessions.
+     *
+     * @return the shared {@link HistoryEventStore}
+     */
+    public static HistoryEventStore getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Holds the shared store, so that it is only created, and the prefetch job started, when it
+     * is first used. The static helpers can be called without it, for example by
+     * {@link HistoryEventCorpus#main(String[])}.
+     */
+    private static final class InstanceHolder {
+        private static final HistoryEventStore INSTANCE = new HistoryEventStore();
+    }
+
+    /**
+     * Returns the events for a day, fetching them from Wikipedia if they are not cached.
+     *
+     * @param month
+     *            the month to get events for, example: April
+     * @param date
+     *            the date to get events for, example: 7
+     * @return unmodifiable list of events for that date, or an empty list if they could not be
+     *         fetched
+     */
+    public List<String> getEvents(String month, String date) {
+        return getEventsForDay(getDayKey(month, date));
+    }
+
+    /**
+     * Returns the events for a day, fetching them from Wikipedia if they are not cached.
+     *
+     * @param dayKey
+     *            the day to get events for, as returned by {@link #getDayKey(String, String)}
+     * @return unmodifiable list of events for that date, or an empty list if they could not be
+     *         fetched
+     */
+    public List<String> getEventsForDay(String dayKey) {
+        try {
+            return cache.get(dayKey);
+        } catch (ExecutionException e) {
+            log.error("Unable to get events for {}", dayKey, e.getCause());
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Returns the key identifying a day, which is also its Wikipedia page title.
+     *
+     * @param month
+     *            the month, example: April
+     * @param date
+     *            the date, example: 7
+     * @return the key for the day, example: April_7
+     */
+    public static String getDayKey(String month, String date) {
+        return month + "_" + date;
+    }
+
+    /**
+     * Opens the corpus file at the given path, or returns null if there is none or it cannot be
+     * read.
+     */
+    private static HistoryEventCorpus openCorpus(String path) {
+        if (path == null) {
+            return null;
+        }
+        try {
+            HistoryEventCorpus corpus = HistoryEventCorpus.open(new File(path));
+            log.info("Serving {} days of events from {}", corpus.getDayCount(), path);
+            return corpus;
+        } catch (IOException e) {
+            log.error("Unable to open event corpus {}, using Wikipedia", path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Starts the daemon thread that keeps today's and tomorrow's events cached in each of the
+     * given time zones.
+     */
+    private void startPrefetch(final Set<TimeZone> timeZones) {
+        ScheduledExecutorService executor =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "historybuff-prefetch");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                prefetch(timeZones);
+            }
+        }, 0, PREFETCH_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Loads today's and tomorrow's events for each time zone, unless they are already cached.
+     * Tomorrow is loaded ahead of time so the entry is warm when midnight passes in that zone.
+     */
+    private void prefetch(final Set<TimeZone> timeZones) {
+        DateFormat monthFormat = new SimpleDateFormat("MMMM", Locale.US);
+        for (TimeZone timeZone : timeZones) {
+            Calendar calendar = Calendar.getInstance(timeZone, Locale.US);
+            monthFormat.setTimeZone(timeZone);
+            for (int i = 0; i < 2; i++) {
+                String dayKey =
+                        getDayKey(monthFormat.format(calendar.getTime()),
+                                Integer.toString(calendar.get(Calendar.DATE)));
+                try {
+                    cache.get(dayKey);
+                } catch (ExecutionException e) {
+                    log.warn("Unable to prefetch events for {}", dayKey, e.getCause());
+                }
+                calendar.add(Calendar.DATE, 1);
+            }
+        }
+    }
+
+    /**
+     * Reads the time zones to prefetch for from the {@code historybuff.prefetch.timeZones} system
+     * property.
+     */
+    private static Set<TimeZone> getPrefetchTimeZones() {
+        Set<TimeZone> timeZones = new LinkedHashSet<TimeZone>();
+        String ids = System.getProperty("historybuff.prefetch.timeZones");
+        if (ids != null) {
+            for (String id : ids.split(",")) {
+                if (!id.trim().isEmpty()) {
+                    timeZones.add(TimeZone.getTimeZone(id.trim()));
+                }
+            }
+        }
+        if (timeZones.isEmpty()) {
+            timeZones.add(TimeZone.getDefault());
+        }
+        return timeZones;
+    }
+
+    /**
+     * Download JSON-formatted list of events from Wikipedia, for a defined day/date, and return a
+     * String array of the events, with each event representing an element in the array. The most
+     * recent events come first.
+     *
+     * @param dayKey
+     *            the Wikipedia page title of the day to get events for, example: April_7
+     * @return String array of events for that date, 1 event per element of the array
+     * @throws IOException
+     *             if the page cannot be fetched or holds no events
+     */
+    static ArrayList<String> getJsonEventsFromWikipedia(String dayKey) throws IOException {
+        final ArrayDeque<String> events = new ArrayDeque<String>();
+        SkillHttpClient.getInstance().get(URL_PREFIX + dayKey,
+                new SkillHttpClient.ResponseReader<Void>() {
+                    @Override
+                    public Void read(InputStream body) throws IOException {
+                        Reader reader = new InputStreamReader(body, Charset.forName("US-ASCII"));
+                        WikipediaEventExtractor.extract(reader,
+                                new WikipediaEventExtractor.EventHandler() {
+                                    @Override
+                                    public void onEvent(String event) {
+                                        // the page lists the oldest events first
+                                        events.addFirst(event);
+                                    }
+                                });
+                        return null;
+                    }
+                });
+        if (events.isEmpty()) {
+            throw new IOException("No events found for " + dayKey);
+        }
+        return new ArrayList<String>(events);
+    }
+}
@@ -0,0 +1,249 @@
+/**
+    Copyright 2014-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+    Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License. A copy of the License is located at
+
+        http://aws.amazon.com/apache2.0/
+
+    or in the "license" file accompanying this file. This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package historybuff;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Extracts the events of a day from the JSON-formatted Wikipedia page in a single pass over the
+ * response body.
+ * <p>
+ * The plain text extract of the page holds the Events, Births and Deaths sections, with lines
+ * separated by escaped newlines ({@code \n}). The extractor skips ahead to the Events header,
+ * emits every line up to the Births header as one event and stops reading there, so the rest of
+ * the page is never buffered or scanned. Each event is made pretty on the fly: the en dash
+ * ({@code \\u2013}) after the year is dropped and a comma is added after the year so Alexa pauses
+ * before continuing with the sentence.
+ */
+public final class WikipediaEventExtractor {
+    /**
+     * Header that precedes the list of events.
+     */
+    private static final char[] EVENTS_HEADER = "\\nEvents\\n".toCharArray();
+
+    /**
+     * Header of the section following the list of events.
+     */
+    private static final String BIRTHS_HEADER = "Births";
+
+    /**
+     * Number of consecutive line breaks preceding a section header.
+     */
+    private static final int SECTION_BREAK_SIZE = 3;
+
+    /**
+     * Escaped unicode character for the en dash that separates the year from the event.
+     */
+    private static final String EN_DASH = "2013";
+
+    /**
+     * Number of hex digits in an escaped unicode character.
+     */
+    private static final int UNICODE_ESCAPE_SIZE = 4;
+
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * KMP failure function of {@link #EVENTS_HEADER}.
+     */
+    private static final int[] EVENTS_HEADER_FAILURE = computeFailure(EVENTS_HEADER);
+
+    private WikipediaEventExtractor() {
+    }
+
+    /**
+     * Receives events as they are extracted.
+     */
+    public interface EventHandler {
+        /**
+         * Called for every event, in the order in which they appear on the page.
+         *
+         * @param event
+         *            the event text, example: "In 2003, ..."
+         */
+        void onEvent(String event);
+    }
+
+    /**
+     * Reads the page from the reader and passes every event to the handler. Stops reading at the
+     * Births header, or at the end of the text if there is none. Does nothing if the page has no
+     * Events header.
+     *
+     * @param reader
+     *            the JSON-formatted page
+     * @param handler
+     *            receives the events
+     * @throws IOException
+     *             if the page cannot be read
+     */
+    public static void extract(Reader reader, EventHandler handler) throws IOException {
+        char[] buffer = new char[BUFFER_SIZE];
+        State state = new State(handler);
+        int read;
+        while (!state.done && (read = reader.read(buffer)) != -1) {
+            for (int i = 0; i < read && !state.done; i++) {
+                state.accept(buffer[i]);
+            }
+        }
+        state.finish();
+    }
+
+    private static int[] computeFailure(char[] pattern) {
+        int[] failure = new int[pattern.length];
+        int k = 0;
+        for (int i = 1; i < pattern.length; i++) {
+            while (k > 0 && pattern[k] != pattern[i]) {
+                k = failure[k - 1];
+            }
+            if (pattern[k] == pattern[i]) {
+                k++;
+            }
+            failure[i] = k;
+        }
+        return failure;
+    }
+
+    /**
+     * Parsing state for one page.
+     */
+    private static final class State {
+        private final EventHandler handler;
+
+        /**
+         * Number of characters of the Events header matched so far, or -1 once it was found.
+         */
+        private int headerMatched = 0;
+
+        /**
+         * Text of the event being read.
+         */
+        private final StringBuilder event = new StringBuilder();
+
+        /**
+         * Hex digits of the escaped unicode character being read, or null if there is none.
+         */
+        private StringBuilder unicodeEscape;
+
+        private boolean escaped;
+        private boolean skipWhitespace;
+
+        /**
+         * Number of line breaks since the last non-empty line.
+         */
+        private int lineBreaks = 1;
+
+        private boolean done;
+
+        private State(EventHandler handler) {
+            this.handler = handler;
+        }
+
+        private void accept(char c) {
+            if (headerMatched >= 0) {
+                matchHeader(c);
+            } else if (unicodeEscape != null) {
+                acceptUnicodeEscape(c);
+            } else if (escaped) {
+                escaped = false;
+                if (c == 'n') {
+                    endLine();
+                } else if (c == 'u') {
+                    unicodeEscape = new StringBuilder(UNICODE_ESCAPE_SIZE);
+                } else {
+                    // keep other escapes as they are
+                    event.append('\\').append(c);
+                }
+            } else if (c == '\\') {
+                escaped = true;
+            } else if (c == '"') {
+                // end of the JSON string holding the page text
+                finish();
+            } else if (skipWhitespace && Character.isWhitespace(c)) {
+                return;
+            } else {
+                skipWhitespace = false;
+                event.append(c);
+            }
+        }
+
+        private void matchHeader(char c) {
+            while (headerMatched > 0 && EVENTS_HEADER[headerMatched] != c) {
+                headerMatched = EVENTS_HEADER_FAILURE[headerMatched - 1];
+            }
+            if (EVENTS_HEADER[headerMatched] == c) {
+                headerMatched++;
+            }
+            if (headerMatched == EVENTS_HEADER.length) {
+                headerMatched = -1;
+            }
+        }
+
+        private void acceptUnicodeEscape(char c) {
+            unicodeEscape.append(c);
+            if (unicodeEscape.length() < UNICODE_ESCAPE_SIZE) {
+                return;
+            }
+            if (EN_DASH.contentEquals(unicodeEscape)) {
+                // drop the dash returned in text from Wikipedia's API, and the spaces after it
+                skipWhitespace = true;
+            } else {
+                event.append("\\u").append(unicodeEscape);
+            }
+            unicodeEscape = null;
+        }
+
+        private void endLine() {
+            skipWhitespace = false;
+            if (event.length() == 0) {
+                lineBreaks++;
+                return;
+            }
+            if (lineBreaks >= SECTION_BREAK_SIZE && startsWith(event, BIRTHS_HEADER)) {
+                done = true;
+                return;
+            }
+            handler.onEvent(formatEvent(event));
+            event.setLength(0);
+            lineBreaks = 1;
+        }
+
+        private void finish() {
+            if (!done && headerMatched < 0) {
+                endLine();
+            }
+            done = true;
+        }
+
+        private static boolean startsWith(StringBuilder text, String prefix) {
+            return text.length() >= prefix.length()
+                    && text.substring(0, prefix.length()).equals(prefix);
+        }
+
+        /**
+         * Prefixes the event with "In " and adds a comma after the year.
+         */
+        private static String formatEvent(StringBuilder text) {
+            int yearLength = 0;
+            while (yearLength < text.length() && Character.isDigit(text.charAt(yearLength))) {
+                yearLength++;
+            }
+            StringBuilder formatted = new StringBuilder(text.length() + 4);
+            formatted.append("In ");
+            if (yearLength > 0) {
+                formatted.append(text, 0, yearLength).append(',').append(text, yearLength,
+                        text.length());
+            } else {
+                formatted.append(text);
+            }
+            return formatted.toString();
+        }
+    }
+}
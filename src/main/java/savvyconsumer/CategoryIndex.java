@@ -0,0 +1,180 @@
+/**
+    Copyright 2014-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+    Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License. A copy of the License is located at
+
+        http://aws.amazon.com/apache2.0/
+
+    or in the "license" file accompanying this file. This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package savvyconsumer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves what a user said to a category of the Amazon catalog.
+ * <p>
+ * A spoken category is normalized by lower casing it, removing white space and periods and
+ * replacing "three" with "3". It then resolves, in order, to:
+ * <ol>
+ * <li>the category of an alternative spoken name equal to it,</li>
+ * <li>the category equal to it, ignoring case,</li>
+ * <li>the first category containing it or contained in it, ignoring case.</li>
+ * </ol>
+ * Everything needed is computed when the index is created. Every substring of every category is
+ * mapped to the first category containing it, and categories are grouped by their first letters,
+ * so resolving a spoken category takes a few hash lookups per character, whatever the number of
+ * categories.
+ * <p>
+ * Instances are immutable and thread-safe.
+ */
+final class CategoryIndex {
+    /**
+     * The normalized spoken names and categories, mapped to their category.
+     */
+    private final Map<String, String> exactMatches = new HashMap<String, String>();
+
+    /**
+     * Every substring of the lower cased categories, including the empty string, mapped to the
+     * position of the first category containing it.
+     */
+    private final Map<String, Integer> substrings = new HashMap<String, Integer>();
+
+    /**
+     * The positions of the categories, grouped by the first {@link #gramLength} letters of their
+     * lower cased names.
+     */
+    private final Map<String, List<Integer>> grams = new HashMap<String, List<Integer>>();
+
+    /**
+     * The categories, in the order they are matched.
+     */
+    private final String[] categories;
+
+    /**
+     * The lower cased categories, at the same positions as {@link #categories}.
+     */
+    private final String[] lowerCaseCategories;
+
+    /**
+     * The length of the shortest category, and of the keys of {@link #grams}.
+     */
+    private final int gramLength;
+
+    /**
+     * Creates an index.
+     *
+     * @param categories
+     *            the categories, in the order they are matched
+     * @param spokenNames
+     *            alternative spoken names mapped to their category
+     */
+    CategoryIndex(Collection<String> categories, Map<String, String> spokenNames) {
+        this.categories = categories.toArray(new String[categories.size()]);
+        this.lowerCaseCategories = new String[this.categories.length];
+
+        int shortest = Integer.MAX_VALUE;
+        for (int i = 0; i < this.categories.length; i++) {
+            String category = this.categories[i].toLowerCase();
+            lowerCaseCategories[i] = category;
+            shortest = Math.min(shortest, category.length());
+            if (!exactMatches.containsKey(category)) {
+                exactMatches.put(category, this.categories[i]);
+            }
+            for (int start = 0; start <= category.length(); start++) {
+                for (int end = start; end <= category.length(); end++) {
+                    String substring = category.substring(start, end);
+                    if (!substrings.containsKey(substring)) {
+                        substrings.put(substring, Integer.valueOf(i));
+                    }
+                }
+            }
+        }
+        gramLength = Math.max(1, shortest);
+
+        for (int i = 0; i < lowerCaseCategories.length; i++) {
+            String gram = lowerCaseCategories[i].substring(0,
+                    Math.min(gramLength, lowerCaseCategories[i].length()));
+            List<Integer> positions = grams.get(gram);
+            if (positions == null) {
+                positions = new ArrayList<Integer>();
+                grams.put(gram, positions);
+            }
+            positions.add(Integer.valueOf(i));
+        }
+
+        // Spoken names take precedence over the categories
+        for (Map.Entry<String, String> entry : spokenNames.entrySet()) {
+            exactMatches.put(normalize(entry.getKey()), entry.getValue());
+        }
+    }
+
+    /**
+     * Resolves a spoken category.
+     *
+     * @param spokenCategory
+     *            what the user said
+     * @return the category, or null if none matches
+     */
+    String lookup(String spokenCategory) {
+        String category = normalize(spokenCategory);
+        String exactMatch = exactMatches.get(category);
+        if (exactMatch != null) {
+            return exactMatch;
+        }
+
+        // First category containing the spoken category
+        Integer containing = substrings.get(category);
+        int first = containing != null ? containing.intValue() : categories.length;
+
+        // First category contained in the spoken category
+        for (int start = 0; start + gramLength <= category.length(); start++) {
+            List<Integer> positions = grams.get(category.substring(start, start + gramLength));
+            if (positions == null) {
+                continue;
+            }
+            for (Integer position : positions) {
+                int i = position.intValue();
+                if (i >= first) {
+                    break;
+                }
+                if (category.startsWith(lowerCaseCategories[i], start)) {
+                    first = i;
+                    break;
+                }
+            }
+        }
+
+        return first < categories.length ? categories[first] : null;
+    }
+
+    /**
+     * Lower cases a spoken category, removes its white space and periods and replaces "three"
+     * with "3".
+     */
+    static String normalize(String spokenCategory) {
+        String lowerCase = spokenCategory.toLowerCase();
+        StringBuilder normalized = new StringBuilder(lowerCase.length());
+        for (int i = 0; i < lowerCase.length(); i++) {
+            char c = lowerCase.charAt(i);
+            if (!isWhitespace(c) && c != '.') {
+                normalized.append(c);
+            }
+        }
+        for (int i = normalized.indexOf("three"); i >= 0; i = normalized.indexOf("three", i + 1)) {
+            normalized.replace(i, i + "three".length(), "3");
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Returns true for the white space characters matched by \s in a regular expression.
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -9,23 +9,27 @@
  */
 package savvyconsumer;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import com.amazon.speech.slu.Intent;
 import com.amazon.speech.slu.Slot;
@@ -42,6 +46,9 @@ import com.amazon.speech.ui.Reprompt;
 import com.amazon.speech.ui.SimpleCard;
 import com.amazon.speech.ui.SsmlOutputSpeech;
 
+import common.LoadingCache;
+import common.SkillHttpClient;
+
 /**
  * This sample shows how to create a Lambda function for handling Alexa Skill requests that:
  *
@@ -112,6 +119,26 @@ public class SavvyConsumerSpeechlet implements Speechlet {
      */
     private static final String SESSION_CURRENT_CATEGORY = "category";
 
+    /**
+     * The key to find the category of the browse node map from the session attributes, in
+     * compact sessions.
+     */
+    private static final String SESSION_LOOKUP_CATEGORY = "lookupCategory";
+
+    /**
+     * The key to find the version of the top sellers from the session attributes, in compact
+     * sessions.
+     */
+    private static final String SESSION_VERSION = "version";
+
+    /**
+     * Whether sessions keep the category and version of the top sellers instead of their titles,
+     * getting the titles back from the top sellers cache on each page. Enabled with
+     * {@code -Dsavvyconsumer.compactSessions=true}.
+     */
+    private static final boolean COMPACT_SESSIONS =
+            Boolean.parseBoolean(System.getProperty("savvyconsumer.compactSessions"));
+
     /**
      * The Max number of items for Alexa to read from a request to Amazon.
      */
@@ -127,6 +154,28 @@ public class SavvyConsumerSpeechlet implements Speechlet {
      */
     private static final String SLOT_CATEGORY = "Category";
 
+    /**
+     * Creates the parsers reading the Product Advertising API responses. The factory is
+     * configured once and then only used to create readers, which is safe across threads.
+     */
+    private static final XMLInputFactory XML_INPUT_FACTORY = newXmlInputFactory();
+
+    /**
+     * Signs the Product Advertising API requests, set up on first use.
+     */
+    private static SignedRequestsHelper signedRequestsHelper;
+
+    /**
+     * Top sellers by category, shared by all sessions.
+     */
+    private final TopSellersCache topSellersCache = new TopSellersCache(
+            new LoadingCache.Loader<String, List<String>>() {
+                @Override
+                public List<String> load(String category) throws SpeechletException {
+                    return fetchTitles(category);
+                }
+            });
+
     /**
      * Mapping of the browse node ID to the category for the Amazon catalog. Use a tree map so gets
      * can be case insensitive.
@@ -141,6 +190,11 @@ public class SavvyConsumerSpeechlet implements Speechlet {
     private static final Map<String, String> spokenNameToCategory = new TreeMap<String, String>(
             String.CASE_INSENSITIVE_ORDER);
 
+    /**
+     * Resolves the category slot to a key of the browse node map, built once from both maps.
+     */
+    private static final CategoryIndex categoryIndex;
+
     static {
         spokenNameToCategory.put("movies", "DVD");
         spokenNameToCategory.put("movie", "DVD");
@@ -192,6 +246,8 @@ public class SavvyConsumerSpeechlet implements Speechlet {
         browseNodeMap.put("Watches", "378516011");
         browseNodeMap.put("Wireless", "2335753011");
         browseNodeMap.put("WirelessAccessories", "13900851");
+
+        categoryIndex = new CategoryIndex(browseNodeMap.keySet(), spokenNameToCategory);
     }
 
     @Override
@@ -253,8 +309,8 @@ public class SavvyConsumerSpeechlet implements Speechlet {
     }
 
     /**
-     * Calls the Product Advertising API to get the top sellers for a category. Then Creates a
-     * {@code SpeechletResponse} for the intent.
+     * Gets the top sellers for a category from the cache, which calls the Product Advertising API
+     * when needed. Then Creates a {@code SpeechletResponse} for the intent.
      *
      * @param intent
      *            intent for the request
@@ -283,7 +339,13 @@ public class SavvyConsumerSpeechlet implements Speechlet {
         String category = categorySlot.getValue().replaceAll("\\.\\s*", "");
 
         if (lookupCategory != null) {
-            List<String> items = fetchTitles(lookupCategory);
+            List<String> items;
+            try {
+                items = topSellersCache.get(lookupCategory);
+            } catch (ExecutionException e) {
+                log.error("Unable to get top sellers for {}", lookupCategory, e.getCause());
+                items = Collections.emptyList();
+            }
 
             // Configure the card and speech output.
             String cardTitle = "Top Sellers for " + category;
@@ -306,7 +368,9 @@ public class SavvyConsumerSpeechlet implements Speechlet {
                 }
 
                 // Set the session attributes and full card output
-                session.setAttribute(Integer.toString(i), item);
+                if (!COMPACT_SESSIONS) {
+                    session.setAttribute(Integer.toString(i), item);
+                }
                 cardOutput.append(numberInList).append(". ").append(item).append(".");
                 i++;
             }
@@ -319,6 +383,11 @@ public class SavvyConsumerSpeechlet implements Speechlet {
                 return SpeechletResponse.newTellResponse(output);
             }
 
+            if (COMPACT_SESSIONS) {
+                session.setAttribute(SESSION_LOOKUP_CATEGORY, lookupCategory);
+                session.setAttribute(SESSION_VERSION, TopSellersCache.getVersion(items));
+            }
+
             speechOutput.append(" Would you like to hear the rest?");
             repromptText = "Would you like to hear the rest? Please say yes or no.";
 
@@ -345,37 +414,68 @@ public class SavvyConsumerSpeechlet implements Speechlet {
 
     /**
      * Fetches the top ten selling titles from the Product Advertising API.
+     * <p>
+     * The response is read as a stream, collecting the text of the Title elements as they are
+     * parsed, and reading stops once MAX_ITEMS titles are found.
      *
      * @throws SpeechletException
      */
     private List<String> fetchTitles(String category) throws SpeechletException {
-        List<String> titles = new LinkedList<String>();
         try {
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db = dbf.newDocumentBuilder();
-            // Make the actual http call and get the xml response.
-            Document doc = db.parse(getRequestUrl(category));
-            NodeList nodeList = doc.getElementsByTagName("Title");
-
-            for (int i = 0; i < nodeList.getLength(); i++) {
-                Node node = nodeList.item(i);
-                titles.add(node.getTextContent());
-            }
+            // Make the actual http call and read the titles from the xml response.
+            return SkillHttpClient.getInstance().get(getRequestUrl(category),
+                    new SkillHttpClient.ResponseReader<List<String>>() {
+                        @Override
+                        public List<String> read(InputStream body) throws IOException {
+                            try {
+                                return readTitles(body);
+                            } catch (XMLStreamException e) {
+                                throw new IOException("Malformed response", e);
+                            }
+                        }
+                    });
         } catch (Exception e) {
             throw new SpeechletException(e);
         }
+    }
+
+    /**
+     * Reads at most MAX_ITEMS titles from an ItemSearch response.
+     */
+    private static List<String> readTitles(InputStream body) throws XMLStreamException {
+        List<String> titles = new LinkedList<String>();
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(body);
+        try {
+            while (titles.size() < MAX_ITEMS && reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT
+                        && "Title".equals(reader.getLocalName())) {
+                    titles.add(reader.getElementText());
+                }
+            }
+        } finally {
+            reader.close();
+        }
         return titles;
     }
 
+    /**
+     * Creates the factory of the response parsers. The responses have no DTD, so DTDs and external
+     * entities are not supported.
+     */
+    private static XMLInputFactory newXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        return factory;
+    }
+
     /**
      * Gets the request URL with the proper parameters and signs it.
      */
     private String getRequestUrl(String category) throws InvalidKeyException,
             IllegalArgumentException, UnsupportedEncodingException, NoSuchAlgorithmException {
-        // Set up the signed requests helper
-        SignedRequestsHelper helper =
-                SignedRequestsHelper.getInstance("ecs.amazonaws.com", AWS_ACCESS_KEY_ID,
-                        AWS_SECRET_KEY);
+        SignedRequestsHelper helper = getSignedRequestsHelper();
 
         Map<String, String> params = new HashMap<String, String>();
         params.put("Service", "AWSECommerceService");
@@ -390,7 +490,23 @@ public class SavvyConsumerSpeechlet implements Speechlet {
     }
 
     /**
-     * Gets the 2nd-MAX_ITEMS number of titles from the session attributes.
+     * Returns the signed requests helper, setting it up on first use. The helper is thread-safe
+     * and shared by all requests.
+     */
+    private static synchronized SignedRequestsHelper getSignedRequestsHelper()
+            throws InvalidKeyException, IllegalArgumentException, UnsupportedEncodingException,
+            NoSuchAlgorithmException {
+        if (signedRequestsHelper == null) {
+            signedRequestsHelper =
+                    SignedRequestsHelper.getInstance("ecs.amazonaws.com", AWS_ACCESS_KEY_ID,
+                            AWS_SECRET_KEY);
+        }
+        return signedRequestsHelper;
+    }
+
+    /**
+     * Gets the 2nd-MAX_ITEMS number of titles from the session attributes, or from the top sellers
+     * cache for compact sessions.
      */
     private SpeechletResponse getNextPageOfItems(final Intent intent, final Session session) {
         if (session.getAttributes().containsKey(SESSION_CURRENT_INDEX)) {
@@ -398,10 +514,19 @@ public class SavvyConsumerSpeechlet implements Speechlet {
             int currentItemNumberInList = currentIndex + 1;
             StringBuilder speechOutput = new StringBuilder();
 
-            // Iterate through the session attributes to create the next n results for the user.
+            List<String> items = getSessionItems(session);
+            if (items.isEmpty()) {
+                SsmlOutputSpeech output = new SsmlOutputSpeech();
+                output.setSsml("<speak>I'm sorry, I cannot get the top sellers for "
+                        + session.getAttribute(SESSION_CURRENT_CATEGORY)
+                        + " at this time. Please try again later. Goodbye.</speak>");
+                return SpeechletResponse.newTellResponse(output);
+            }
+
+            // Iterate through the items to create the next n results for the user.
             for (int i = 0; i < PAGINATION_SIZE; i++) {
                 String currentString =
-                        (String) session.getAttribute(Integer.toString(currentIndex));
+                        currentIndex < items.size() ? items.get(currentIndex) : null;
                 if (currentString != null) {
                     if (currentItemNumberInList < MAX_ITEMS) {
                         speechOutput.append("<say-as interpret-as=\"ordinal\">" + currentItemNumberInList
@@ -441,6 +566,32 @@ public class SavvyConsumerSpeechlet implements Speechlet {
         }
     }
 
+    /**
+     * Gets the titles of the top sellers of a session. Compact sessions only keep the category and
+     * version of the top sellers, other sessions keep the titles themselves.
+     *
+     * @return the titles, or an empty list if they cannot be fetched again
+     */
+    private List<String> getSessionItems(final Session session) {
+        String version = (String) session.getAttribute(SESSION_VERSION);
+        if (version != null) {
+            String lookupCategory = (String) session.getAttribute(SESSION_LOOKUP_CATEGORY);
+            try {
+                return topSellersCache.get(lookupCategory, version);
+            } catch (ExecutionException e) {
+                log.error("Unable to get top sellers for {}", lookupCategory, e.getCause());
+                return Collections.emptyList();
+            }
+        }
+
+        List<String> items = new ArrayList<String>(MAX_ITEMS);
+        String item;
+        while ((item = (String) session.getAttribute(Integer.toString(items.size()))) != null) {
+            items.add(item);
+        }
+        return items;
+    }
+
     /**
      * Gets the lookup word based on the input category slot. The lookup word will be from the
      * BROWSE_NODE_MAP and will attempt to get an exact match. However, if no exact match exists
@@ -451,45 +602,10 @@ public class SavvyConsumerSpeechlet implements Speechlet {
      * @returns {string} the lookup word for the BROWSE_NODE_MAP
      */
     private String getLookupWord(Slot categorySlot) {
-        String lookupCategory = null;
-        if (categorySlot != null && categorySlot.getValue() != null) {
-            // Lower case the incoming slot and remove spaces
-            String category =
-                    categorySlot
-                            .getValue()
-                            .toLowerCase()
-                            .replaceAll("\\s", "")
-                            .replaceAll("\\.", "")
-                            .replaceAll("three", "3");
-
-            // Check for spoken names
-            lookupCategory = spokenNameToCategory.get(category);
-            if (lookupCategory == null) {
-                // The lookup category wasn't in the spoken names map. Look for it in the browse
-                // node map.
-                for (String key : browseNodeMap.keySet()) {
-                    if (key.equalsIgnoreCase(category)) {
-                        lookupCategory = key;
-                        break;
-                    }
-                }
-            }
-
-            if (lookupCategory == null) {
-                // The lookup category still wasn't found so try to see if the keys contain the
-                // category
-                for (String key : browseNodeMap.keySet()) {
-                    if (key.toLowerCase().contains(category)
-                            || category.contains(key.toLowerCase())) {
-                        lookupCategory = key;
-                        break;
-                    }
-                }
-
-            }
+        if (categorySlot == null || categorySlot.getValue() == null) {
+            return null;
         }
-
-        return lookupCategory;
+        return categoryIndex.lookup(categorySlot.getValue());
     }
 
     /**
@@ -23,13 +23,12 @@ package savvyconsumer;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -44,6 +43,10 @@ import org.apache.commons.codec.binary.Base64;
 
 /**
  * This class contains all the logic for signing requests to the Amazon Product Advertising API.
+ * <p>
+ * Instances are thread-safe and meant to be long-lived: the key is set up once, and each thread
+ * signs with its own copy of the initialized {@link Mac}, since a {@link Mac} cannot be shared
+ * between threads.
  *
  * @see <a href="https://aws.amazon.com/code/Product-Advertising-API/2478">Amazon Product
  *      Advertising API</a>
@@ -54,6 +57,8 @@ public final class SignedRequestsHelper {
      */
     private static final String UTF8_CHARSET = "UTF-8";
 
+    private static final Charset UTF8 = Charset.forName(UTF8_CHARSET);
+
     /**
      * The HMAC algorithm required by Amazon.
      */
@@ -70,12 +75,40 @@ public final class SignedRequestsHelper {
      */
     private static final String REQUEST_METHOD = "GET";
 
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * ISO-8601 timestamp format, one per thread since {@link DateFormat} is not thread-safe.
+     */
+    private static final ThreadLocal<DateFormat> TIMESTAMP_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat dfm = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+            dfm.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return dfm;
+        }
+    };
+
     private String endpoint = null;
     private String awsAccessKeyId = null;
     private String awsSecretKey = null;
 
     private SecretKeySpec secretKeySpec = null;
-    private Mac mac = null;
+
+    /**
+     * Initialized {@link Mac} copied by each thread.
+     */
+    private Mac prototypeMac = null;
+
+    /**
+     * {@link Mac} of each thread.
+     */
+    private final ThreadLocal<Mac> mac = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            return newMac();
+        }
+    };
 
     /**
      * You must provide the three values below to initialize the helper.
@@ -107,8 +140,8 @@ public final class SignedRequestsHelper {
 
         byte[] secretyKeyBytes = instance.awsSecretKey.getBytes(UTF8_CHARSET);
         instance.secretKeySpec = new SecretKeySpec(secretyKeyBytes, HMAC_SHA256_ALGORITHM);
-        instance.mac = Mac.getInstance(HMAC_SHA256_ALGORITHM);
-        instance.mac.init(instance.secretKeySpec);
+        instance.prototypeMac = Mac.getInstance(HMAC_SHA256_ALGORITHM);
+        instance.prototypeMac.init(instance.secretKeySpec);
 
         return instance;
     }
@@ -172,18 +205,29 @@ public final class SignedRequestsHelper {
      * @return base64-encoded hmac value.
      */
     private String hmac(String stringToSign) {
-        String signature = null;
-        byte[] data;
-        byte[] rawHmac;
+        byte[] rawHmac = mac.get().doFinal(stringToSign.getBytes(UTF8));
+        return new String(Base64.encodeBase64(rawHmac), UTF8);
+    }
+
+    /**
+     * Creates a {@link Mac} initialized with the secret key, preferably by copying the prototype
+     * rather than looking up the algorithm again.
+     */
+    private Mac newMac() {
         try {
-            data = stringToSign.getBytes(UTF8_CHARSET);
-            rawHmac = mac.doFinal(data);
-            Base64 encoder = new Base64();
-            signature = new String(encoder.encode(rawHmac), Charset.defaultCharset());
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(UTF8_CHARSET + " is unsupported!", e);
+            synchronized (prototypeMac) {
+                return (Mac) prototypeMac.clone();
+            }
+        } catch (CloneNotSupportedException e) {
+            try {
+                Mac newMac = Mac.getInstance(HMAC_SHA256_ALGORITHM);
+                newMac.init(secretKeySpec);
+                return newMac;
+            } catch (NoSuchAlgorithmException | InvalidKeyException e2) {
+                // getInstance() already initialized a Mac with the same algorithm and key
+                throw new IllegalStateException("Unable to create " + HMAC_SHA256_ALGORITHM, e2);
+            }
         }
-        return signature;
     }
 
     /**
@@ -192,12 +236,7 @@ public final class SignedRequestsHelper {
      * @return ISO-8601 format timestamp.
      */
     private String timestamp() {
-        String timestamp = null;
-        Calendar cal = Calendar.getInstance();
-        DateFormat dfm = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-        dfm.setTimeZone(TimeZone.getTimeZone("GMT"));
-        timestamp = dfm.format(cal.getTime());
-        return timestamp;
+        return TIMESTAMP_FORMAT.get().format(new Date());
     }
 
     /**
@@ -212,25 +251,23 @@ public final class SignedRequestsHelper {
             return "";
         }
 
-        StringBuffer buffer = new StringBuffer();
+        StringBuilder buffer = new StringBuilder();
         Iterator<Map.Entry<String, String>> iter = sortedParamMap.entrySet().iterator();
 
         while (iter.hasNext()) {
             Map.Entry<String, String> kvpair = iter.next();
-            buffer.append(percentEncodeRfc3986(kvpair.getKey()));
-            buffer.append("=");
-            buffer.append(percentEncodeRfc3986(kvpair.getValue()));
+            percentEncodeRfc3986(kvpair.getKey(), buffer);
+            buffer.append('=');
+            percentEncodeRfc3986(kvpair.getValue(), buffer);
             if (iter.hasNext()) {
-                buffer.append("&");
+                buffer.append('&');
             }
         }
-        String cannoical = buffer.toString();
-        return cannoical;
+        return buffer.toString();
     }
 
     /**
-     * Percent-encode values according the RFC 3986. The built-in Java URLEncoder does not encode
-     * according to the RFC, so we make the extra replacements.
+     * Percent-encode values according the RFC 3986.
      *
      * @param s
      *            decoded string
@@ -239,17 +276,43 @@ public final class SignedRequestsHelper {
      *      (URI): Generic Syntax</a>
      */
     private String percentEncodeRfc3986(String s) {
-        String out;
-        try {
-            out = URLEncoder
-                    .encode(s, UTF8_CHARSET)
-                    .replace("+", "%20")
-                    .replace("*", "%2A")
-                    .replace("%7E", "~");
-        } catch (UnsupportedEncodingException e) {
-            out = s;
+        StringBuilder out = new StringBuilder(s.length() + 16);
+        percentEncodeRfc3986(s, out);
+        return out.toString();
+    }
+
+    /**
+     * Percent-encode values according the RFC 3986, appending the encoded value to a builder.
+     * Unreserved characters are kept, and every other byte of the UTF-8 form is written as %XX.
+     *
+     * @param s
+     *            decoded string
+     * @param out
+     *            builder the encoded string is appended to
+     */
+    private static void percentEncodeRfc3986(String s, StringBuilder out) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (isUnreserved(c)) {
+                out.append(c);
+                continue;
+            }
+
+            // encode the whole run of reserved characters, keeping surrogate pairs together
+            int end = i + 1;
+            while (end < s.length() && !isUnreserved(s.charAt(end))) {
+                end++;
+            }
+            for (byte b : s.substring(i, end).getBytes(UTF8)) {
+                out.append('%').append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+            }
+            i = end - 1;
         }
-        return out;
+    }
+
+    private static boolean isUnreserved(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '_' || c == '.' || c == '~';
     }
 
     /**
@@ -0,0 +1,364 @@
+/**
+    Copyright 2014-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+    Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License. A copy of the License is located at
+
+        http://aws.amazon.com/apache2.0/
+
+    or in the "license" file accompanying this file. This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package savvyconsumer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import common.LoadingCache;
+
+/**
+ * Caches the top sellers of each category, since they are the same for every user for minutes at
+ * a time.
+ * <p>
+ * Top sellers are fresh for {@code savvyconsumer.cache.ttlSeconds} seconds. After that, they are
+ * still served for up to {@code savvyconsumer.cache.maxStaleSeconds} more seconds while a
+ * background refresh fetches them again, so a voice request only waits for the Product
+ * Advertising API when a category was never fetched or has not been requested for a long time.
+ * Concurrent requests for a category that is not cached share a single fetch.
+ * <p>
+ * A background job refreshes the most requested categories before they go stale. The number of
+ * categories kept warm is set with {@code savvyconsumer.warmUp.categories}, 0 disabling the job.
+ * Background fetches are spaced by at least {@code savvyconsumer.minFetchIntervalMillis}
+ * milliseconds to stay under the request rate allowed by the API.
+ * <p>
+ * Each list of top sellers has a {@link #getVersion(List) version} derived from its titles, so a
+ * session can keep the version instead of the titles and {@link #get(String, String) get them
+ * back} on a later turn. The previous top sellers of a category are kept after a refresh changes
+ * them, for the sessions that started before the refresh.
+ */
+public final class TopSellersCache {
+    private static final Logger log = LoggerFactory.getLogger(TopSellersCache.class);
+
+    /**
+     * Maximum number of categories kept in the cache, more than the number of browse nodes.
+     */
+    private static final int CACHE_MAX_SIZE = 64;
+
+    private static final long DEFAULT_TTL_SECONDS = 300;
+
+    private static final long DEFAULT_MAX_STALE_SECONDS = 3600;
+
+    private static final long DEFAULT_WARM_UP_CATEGORIES = 5;
+
+    /**
+     * Default spacing of background fetches, matching the initial request rate of one request
+     * per second allowed by the Product Advertising API.
+     */
+    private static final long DEFAULT_MIN_FETCH_INTERVAL_MILLIS = 1000;
+
+    private final LoadingCache.Loader<String, List<String>> fetcher;
+
+    private final LoadingCache<String, TopSellers> cache;
+
+    private final long ttlMillis;
+
+    private final long minFetchIntervalMillis;
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Categories with a background refresh queued or running.
+     */
+    private final ConcurrentMap<String, Boolean> refreshing =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Number of requests per category since the last warm-up run.
+     */
+    private final ConcurrentMap<String, AtomicInteger> requestCounts =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * Time of the last background fetch, only accessed by the background thread.
+     */
+    private long lastFetchTime;
+
+    /**
+     * Creates a cache, configured with system properties, and starts warming it up in the
+     * background.
+     *
+     * @param fetcher
+     *            fetches the top sellers of a category from the Product Advertising API
+     */
+    public TopSellersCache(final LoadingCache.Loader<String, List<String>> fetcher) {
+        this.fetcher = fetcher;
+        this.ttlMillis =
+                TimeUnit.SECONDS.toMillis(getLongProperty("savvyconsumer.cache.ttlSeconds",
+                        DEFAULT_TTL_SECONDS));
+        this.minFetchIntervalMillis =
+                getLongProperty("savvyconsumer.minFetchIntervalMillis",
+                        DEFAULT_MIN_FETCH_INTERVAL_MILLIS);
+        long maxStaleMillis =
+                TimeUnit.SECONDS.toMillis(getLongProperty("savvyconsumer.cache.maxStaleSeconds",
+                        DEFAULT_MAX_STALE_SECONDS));
+
+        this.cache =
+                new LoadingCache<String, TopSellers>(CACHE_MAX_SIZE, ttlMillis + maxStaleMillis,
+                        new LoadingCache.Loader<String, TopSellers>() {
+                            @Override
+                            public TopSellers load(String category) throws Exception {
+                                return fetch(category);
+                            }
+                        });
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "savvyconsumer-top-sellers");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        final int warmUpCategories =
+                (int) getLongProperty("savvyconsumer.warmUp.categories",
+                        DEFAULT_WARM_UP_CATEGORIES);
+        if (warmUpCategories > 0) {
+            // runs often enough to refresh each category before it goes stale
+            long warmUpIntervalMillis = Math.max(1, ttlMillis / 2);
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    warmUp(warmUpCategories);
+                }
+            }, warmUpIntervalMillis, warmUpIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Returns the top sellers of a category, fetching them if they are not cached. Stale top
+     * sellers are returned as is, and refreshed in the background.
+     *
+     * @param category
+     *            the category, as a key of the browse node map
+     * @return the titles of the top sellers
+     * @throws ExecutionException
+     *             if the top sellers could not be fetched
+     */
+    public List<String> get(final String category) throws ExecutionException {
+        AtomicInteger count = requestCounts.get(category);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = requestCounts.putIfAbsent(category, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+
+        TopSellers topSellers = cache.get(category);
+        if (topSellers.isStale(System.currentTimeMillis())) {
+            refreshInBackground(category);
+        }
+        return topSellers.titles;
+    }
+
+    /**
+     * Returns a version of the top sellers of a category, as returned by {@link #get(String)}.
+     * Sessions can keep it to get the same top sellers on a later turn.
+     *
+     * @param titles
+     *            the titles of the top sellers
+     * @return the version, the same for equal titles on every server
+     */
+    public static String getVersion(final List<String> titles) {
+        return Integer.toHexString(titles.hashCode());
+    }
+
+    /**
+     * Returns a version of the top sellers of a category, if it is still cached. Otherwise, the
+     * current top sellers are returned, fetching them if needed, as by {@link #get(String)}.
+     *
+     * @param category
+     *            the category, as a key of the browse node map
+     * @param version
+     *            the version, as returned by {@link #getVersion(List)}
+     * @return the titles of the top sellers
+     * @throws ExecutionException
+     *             if the top sellers could not be fetched
+     */
+    public List<String> get(final String category, final String version)
+            throws ExecutionException {
+        TopSellers topSellers = cache.getIfPresent(category);
+        if (topSellers != null && version.equals(topSellers.previousVersion)) {
+            return topSellers.previousTitles;
+        }
+
+        List<String> titles = get(category);
+        if (!version.equals(getVersion(titles))) {
+            log.debug("Top sellers version {} of {} is no longer cached", version, category);
+        }
+        return titles;
+    }
+
+    /**
+     * Queues a refresh of a category, unless one is already queued.
+     */
+    private void refreshInBackground(final String category) {
+        if (refreshing.putIfAbsent(category, Boolean.TRUE) != null) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh(category);
+                } finally {
+                    refreshing.remove(category);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fetches a category again and replaces the cached top sellers. On failure, the cached top
+     * sellers are kept until they expire.
+     */
+    private void refresh(final String category) {
+        long wait = lastFetchTime + minFetchIntervalMillis - System.currentTimeMillis();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        lastFetchTime = System.currentTimeMillis();
+
+        try {
+            TopSellers topSellers = fetch(category);
+            TopSellers current = cache.getIfPresent(category);
+            if (current != null && current.version.equals(topSellers.version)) {
+                topSellers.previousTitles = current.previousTitles;
+                topSellers.previousVersion = current.previousVersion;
+            } else if (current != null) {
+                topSellers.previousTitles = current.titles;
+                topSellers.previousVersion = current.version;
+            }
+            cache.put(category, topSellers);
+        } catch (Exception e) {
+            log.warn("Unable to refresh top sellers for {}", category, e);
+        }
+    }
+
+    private TopSellers fetch(final String category) throws Exception {
+        List<String> titles = fetcher.load(category);
+        if (titles.isEmpty()) {
+            // most likely an error response, don't keep it
+            throw new IllegalStateException("No top sellers found for " + category);
+        }
+        return new TopSellers(Collections.unmodifiableList(new ArrayList<String>(titles)),
+                System.currentTimeMillis() + ttlMillis);
+    }
+
+    /**
+     * Refreshes the most requested categories whose top sellers are missing or will be stale
+     * before the next run.
+     */
+    private void warmUp(final int categoryCount) {
+        long horizon = System.currentTimeMillis() + ttlMillis / 2;
+        for (String category : getMostRequestedCategories(categoryCount)) {
+            TopSellers topSellers = cache.getIfPresent(category);
+            if (topSellers == null || topSellers.isStale(horizon)) {
+                refresh(category);
+            }
+        }
+    }
+
+    /**
+     * Returns the categories with the most requests, and halves every count so that popularity
+     * follows recent traffic.
+     */
+    private List<String> getMostRequestedCategories(final int categoryCount) {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (Map.Entry<String, AtomicInteger> entry : requestCounts.entrySet()) {
+            int count = entry.getValue().get();
+            if (count > 0) {
+                counts.put(entry.getKey(), count);
+            }
+            entry.getValue().addAndGet(-(count - count / 2));
+        }
+
+        List<String> categories = new ArrayList<String>(counts.keySet());
+        Collections.sort(categories, new Comparator<String>() {
+            @Override
+            public int compare(String first, String second) {
+                return counts.get(second).compareTo(counts.get(first));
+            }
+        });
+        return categories.subList(0, Math.min(categoryCount, categories.size()));
+    }
+
+    /**
+     * Reads a numeric setting from the system properties, falling back to the default value if
+     * the property is missing or malformed.
+     */
+    private static long getLongProperty(final String name, final long defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value {} for {}", value, name);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Top sellers of a category.
+     */
+    private static final class TopSellers {
+        private final List<String> titles;
+
+        private final String version;
+
+        /**
+         * Time in milliseconds after which the top sellers are refreshed.
+         */
+        private final long staleAt;
+
+        /**
+         * The titles and version of the different top sellers replaced by these ones, or null.
+         * Set before these top sellers are cached.
+         */
+        private List<String> previousTitles;
+
+        private String previousVersion;
+
+        private TopSellers(List<String> titles, long staleAt) {
+            this.titles = titles;
+            this.version = getVersion(titles);
+            this.staleAt = staleAt;
+        }
+
+        private boolean isStale(long now) {
+            return now >= staleAt;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+    Copyright 2014-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+    Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License. A copy of the License is located at
+
+        http://aws.amazon.com/apache2.0/
+
+    or in the "license" file accompanying this file. This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package scorekeeper;
+
+import java.io.IOException;
+
+/**
+ * Measures the cold start of the ScoreKeeper Lambda handler. Run it in a fresh JVM, with the
+ * same system properties as the function, for instance:
+ * <p>
+ * {@code java -cp <classpath> scorekeeper.ScoreKeeperColdStartTimer 5}
+ * <p>
+ * It reports how long initializing the handler class took, which includes priming, and how long
+ * each of the following help requests took. Comparing runs with {@code -Dscorekeeper.prime=false}
+ * shows how much of the first request priming moves into the init phase.
+ */
+public final class ScoreKeeperColdStartTimer {
+    private static final int DEFAULT_REQUESTS = 3;
+
+    private ScoreKeeperColdStartTimer() {
+    }
+
+    public static void main(String[] args) throws IOException, ClassNotFoundException {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_REQUESTS;
+
+        long start = System.nanoTime();
+        Class.forName(ScoreKeeperSpeechletRequestStreamHandler.class.getName());
+        ScoreKeeperSpeechletRequestStreamHandler handler =
+                new ScoreKeeperSpeechletRequestStreamHandler();
+        System.out.println("Init: " + toMillis(System.nanoTime() - start) + " ms");
+
+        for (int i = 1; i <= requests; i++) {
+            start = System.nanoTime();
+            ScoreKeeperSpeechletRequestStreamHandler.handleRequest(handler,
+                    ScoreKeeperSpeechletRequestStreamHandler.newPrimingRequest());
+            System.out.println("Request " + i + ": " + toMillis(System.nanoTime() - start)
+                    + " ms");
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+}
@@ -9,14 +9,17 @@
  */
 package scorekeeper;
 
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.SortedMap;
 
 import scorekeeper.storage.ScoreKeeperDao;
 import scorekeeper.storage.ScoreKeeperDynamoDbClient;
 import scorekeeper.storage.ScoreKeeperGame;
 import scorekeeper.storage.ScoreKeeperGameData;
+import scorekeeper.storage.ScoreKeeperGameEventItem;
+import scorekeeper.storage.ScoreKeeperGlobalLeaderboard;
 
 import com.amazon.speech.slu.Intent;
 import com.amazon.speech.speechlet.LaunchRequest;
@@ -48,12 +51,43 @@ public class ScoreKeeperManager {
      */
     private static final int MAX_PLAYERS_FOR_SPEECH = 3;
 
+    /**
+     * Maximum number of scores announced for the score history.
+     */
+    private static final int MAX_SCORES_FOR_HISTORY = 5;
+
+    /**
+     * Number of households announced for the global leaderboard.
+     */
+    private static final int MAX_HOUSEHOLDS_FOR_SPEECH = 10;
+
     private final ScoreKeeperDao scoreKeeperDao;
 
+    /**
+     * Leaderboard across all households, or null if it is disabled.
+     */
+    private final ScoreKeeperGlobalLeaderboard globalLeaderboard;
+
     public ScoreKeeperManager(final AmazonDynamoDBClient amazonDynamoDbClient) {
         ScoreKeeperDynamoDbClient dynamoDbClient =
                 new ScoreKeeperDynamoDbClient(amazonDynamoDbClient);
         scoreKeeperDao = new ScoreKeeperDao(dynamoDbClient);
+        if (Boolean.parseBoolean(System.getProperty("scorekeeper.globalLeaderboard"))) {
+            globalLeaderboard = new ScoreKeeperGlobalLeaderboard(amazonDynamoDbClient);
+        } else {
+            globalLeaderboard = null;
+        }
+    }
+
+    /**
+     * Writes any game whose save was acknowledged but not yet written to the database, and any
+     * points not yet added to the global leaderboard.
+     */
+    public void flush() {
+        scoreKeeperDao.flush();
+        if (globalLeaderboard != null) {
+            globalLeaderboard.flush();
+        }
     }
 
     /**
@@ -107,8 +141,7 @@ public class ScoreKeeperManager {
         }
 
         // Reset current game
-        game.resetScores();
-        scoreKeeperDao.saveScoreKeeperGame(game);
+        scoreKeeperDao.resetScores(game);
 
         String speechText =
                 "New game started with " + game.getNumberOfPlayers() + " existing player"
@@ -153,10 +186,8 @@ public class ScoreKeeperManager {
             game = ScoreKeeperGame.newInstance(session, ScoreKeeperGameData.newInstance());
         }
 
-        game.addPlayer(newPlayerName);
-
-        // Save the updated game
-        scoreKeeperDao.saveScoreKeeperGame(game);
+        // Add the player and save the updated game
+        scoreKeeperDao.addPlayer(game, newPlayerName);
 
         String speechText = newPlayerName + " has joined your game. ";
         String repromptText = null;
@@ -217,14 +248,14 @@ public class ScoreKeeperManager {
             return getAskSpeechletResponse(speechText, speechText);
         }
 
-        // Update score
-        if (!game.addScoreForPlayer(playerName, score)) {
+        // Update and save score
+        if (!scoreKeeperDao.addScoreForPlayer(game, playerName, score)) {
             String speechText = "Sorry, " + playerName + " has not joined the game. What else?";
             return getAskSpeechletResponse(speechText, speechText);
         }
-
-        // Save game
-        scoreKeeperDao.saveScoreKeeperGame(game);
+        if (globalLeaderboard != null) {
+            globalLeaderboard.addScore(session.getUser().getUserId(), score);
+        }
 
         // Prepare speech text. If the game has less than 3 players, skip reading scores for each
         // player for brevity.
@@ -255,7 +286,7 @@ public class ScoreKeeperManager {
             return getTellSpeechletResponse("Nobody has joined the game.");
         }
 
-        SortedMap<String, Long> sortedScores = game.getAllScoresInDescndingOrder();
+        Map<String, Long> sortedScores = game.getAllScoresInDescndingOrder();
         String speechText = getAllScoresAsSpeechText(sortedScores);
         Card leaderboardScoreCard = getLeaderboardScoreCard(sortedScores);
 
@@ -265,6 +296,152 @@ public class ScoreKeeperManager {
         return SpeechletResponse.newTellResponse(speech, leaderboardScoreCard);
     }
 
+    /**
+     * Creates and returns response for the undo score intent.
+     *
+     * @param intent
+     *            {@link Intent} for this request
+     * @param session
+     *            {@link Session} for this request
+     * @return response for the undo score intent
+     */
+    public SpeechletResponse getUndoScoreIntentResponse(Intent intent, Session session) {
+        if (!scoreKeeperDao.hasEventLog()) {
+            return getTellSpeechletResponse("Sorry, scores cannot be undone.");
+        }
+
+        ScoreKeeperGame game = scoreKeeperDao.getScoreKeeperGame(session);
+        ScoreKeeperGameEventItem undone = game != null ? scoreKeeperDao.undoLastScore(game) : null;
+        if (undone == null) {
+            return getTellSpeechletResponse("There is no score to undo.");
+        }
+        if (globalLeaderboard != null) {
+            globalLeaderboard.addScore(session.getUser().getUserId(), -undone.getScore());
+        }
+
+        String playerName = undone.getPlayerName();
+        return getTellSpeechletResponse("Took back " + undone.getScore() + " for " + playerName
+                + ". " + playerName + " has " + game.getScoreForPlayer(playerName) + " in total.");
+    }
+
+    /**
+     * Creates and returns response for the tell score history intent.
+     *
+     * @param intent
+     *            {@link Intent} for this request
+     * @param session
+     *            {@link Session} for this request
+     * @return response for the tell score history intent
+     */
+    public SpeechletResponse getTellScoreHistoryIntentResponse(Intent intent, Session session) {
+        if (!scoreKeeperDao.hasEventLog()) {
+            return getTellSpeechletResponse("Sorry, the score history is not available.");
+        }
+
+        ScoreKeeperGame game = scoreKeeperDao.getScoreKeeperGame(session);
+        List<ScoreKeeperGameEventItem> scores =
+                game != null ? scoreKeeperDao.getScoreHistory(game, MAX_SCORES_FOR_HISTORY)
+                        : null;
+        if (scores == null || scores.isEmpty()) {
+            return getTellSpeechletResponse("No points were given since the game started.");
+        }
+
+        StringBuilder speechText = new StringBuilder("The last points given were ");
+        for (int i = 0; i < scores.size(); i++) {
+            if (i > 0) {
+                speechText.append(i == scores.size() - 1 ? " and " : ", ");
+            }
+            speechText
+                    .append(scores.get(i).getScore())
+                    .append(" for ")
+                    .append(scores.get(i).getPlayerName());
+        }
+        speechText.append(".");
+        return getTellSpeechletResponse(speechText.toString());
+    }
+
+    /**
+     * Creates and returns response for the tell global leaderboard intent.
+     *
+     * @param intent
+     *            {@link Intent} for this request
+     * @param session
+     *            {@link Session} for this request
+     * @return response for the tell global leaderboard intent
+     */
+    public SpeechletResponse getTellGlobalLeaderboardIntentResponse(Intent intent,
+            Session session) {
+        if (globalLeaderboard == null || !globalLeaderboard.isAvailable()) {
+            return getTellSpeechletResponse("Sorry, the global leaderboard is not available "
+                    + "right now.");
+        }
+
+        Map<String, Long> topScores = globalLeaderboard.getTopScores(MAX_HOUSEHOLDS_FOR_SPEECH);
+        if (topScores.isEmpty()) {
+            return getTellSpeechletResponse("No household has scored yet.");
+        }
+
+        // Households are anonymous, except for the one asking
+        String customerId = session.getUser().getUserId();
+        Map<String, Long> namedScores = new LinkedHashMap<String, Long>();
+        int rank = 0;
+        for (Entry<String, Long> entry : topScores.entrySet()) {
+            rank++;
+            String household = "Household number " + rank;
+            if (entry.getKey().equals(customerId)) {
+                household += ", your household,";
+            }
+            namedScores.put(household, entry.getValue());
+        }
+
+        PlainTextOutputSpeech speech = new PlainTextOutputSpeech();
+        speech.setText(getAllScoresAsSpeechText(namedScores));
+        return SpeechletResponse.newTellResponse(speech, getLeaderboardScoreCard(namedScores));
+    }
+
+    /**
+     * Creates and returns response for the tell global rank intent.
+     *
+     * @param intent
+     *            {@link Intent} for this request
+     * @param session
+     *            {@link Session} for this request
+     * @return response for the tell global rank intent
+     */
+    public SpeechletResponse getTellGlobalRankIntentResponse(Intent intent, Session session) {
+        if (globalLeaderboard == null || !globalLeaderboard.isAvailable()) {
+            return getTellSpeechletResponse("Sorry, the global leaderboard is not available "
+                    + "right now.");
+        }
+
+        // The best households are ranked exactly, with the total they had in the snapshot
+        String customerId = session.getUser().getUserId();
+        int households = globalLeaderboard.getNumberOfHouseholds();
+        int rank = 0;
+        for (Entry<String, Long> entry : globalLeaderboard.getTopScores(
+                ScoreKeeperGlobalLeaderboard.MAX_TOP_SCORES).entrySet()) {
+            rank++;
+            if (entry.getKey().equals(customerId)) {
+                long total = entry.getValue().longValue();
+                return getTellSpeechletResponse("Your household is number " + rank + " of "
+                        + Math.max(rank, households) + " with " + total
+                        + (total == 1 ? " point." : " points."));
+            }
+        }
+
+        Long total = globalLeaderboard.getTotal(customerId);
+        if (total == null) {
+            return getTellSpeechletResponse("Your household is not on the global leaderboard yet."
+                    + " Add some points to join it.");
+        }
+
+        // Other ranks are estimated from the snapshot
+        rank = globalLeaderboard.getApproximateRank(total.longValue());
+        return getTellSpeechletResponse("Your household has " + total
+                + (total.longValue() == 1 ? " point" : " points") + ", which ranks about number "
+                + rank + " of " + Math.max(rank, households) + ".");
+    }
+
     /**
      * Creates and returns response for the reset players intent.
      *
@@ -276,9 +453,7 @@ public class ScoreKeeperManager {
      */
     public SpeechletResponse getResetPlayersIntentResponse(Intent intent, Session session) {
         // Remove all players
-        ScoreKeeperGame game =
-                ScoreKeeperGame.newInstance(session, ScoreKeeperGameData.newInstance());
-        scoreKeeperDao.saveScoreKeeperGame(game);
+        scoreKeeperDao.resetPlayers(session);
 
         String speechText = "New game started without players. Who do you want to add first?";
         return getAskSpeechletResponse(speechText, speechText);
@@ -12,6 +12,8 @@ package scorekeeper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import scorekeeper.storage.ScoreKeeperDynamoDbClient;
+
 import com.amazon.speech.slu.Intent;
 import com.amazon.speech.speechlet.IntentRequest;
 import com.amazon.speech.speechlet.LaunchRequest;
@@ -72,9 +74,7 @@ public class ScoreKeeperSpeechlet implements Speechlet {
 
     private AmazonDynamoDBClient amazonDynamoDBClient;
 
-    private ScoreKeeperManager scoreKeeperManager;
-
-    private SkillContext skillContext;
+    private volatile ScoreKeeperManager scoreKeeperManager;
 
     @Override
     public void onSessionStarted(final SessionStartedRequest request, final Session session)
@@ -86,7 +86,9 @@ public class ScoreKeeperSpeechlet implements Speechlet {
 
         // if user said a one shot command that triggered an intent event,
         // it will start a new session, and then we should avoid speaking too many words.
+        SkillContext skillContext = new SkillContext();
         skillContext.setNeedsMoreHelp(false);
+        skillContext.saveTo(session);
     }
 
     @Override
@@ -95,7 +97,9 @@ public class ScoreKeeperSpeechlet implements Speechlet {
         log.info("onLaunch requestId={}, sessionId={}", request.getRequestId(),
                 session.getSessionId());
 
+        SkillContext skillContext = new SkillContext();
         skillContext.setNeedsMoreHelp(true);
+        skillContext.saveTo(session);
         return scoreKeeperManager.getLaunchResponse(request, session);
     }
 
@@ -105,6 +109,7 @@ public class ScoreKeeperSpeechlet implements Speechlet {
         log.info("onIntent requestId={}, sessionId={}", request.getRequestId(),
                 session.getSessionId());
         initializeComponents();
+        SkillContext skillContext = SkillContext.fromSession(session);
 
         Intent intent = request.getIntent();
         if ("NewGameIntent".equals(intent.getName())) {
@@ -119,6 +124,18 @@ public class ScoreKeeperSpeechlet implements Speechlet {
         } else if ("TellScoresIntent".equals(intent.getName())) {
             return scoreKeeperManager.getTellScoresIntentResponse(intent, session);
 
+        } else if ("UndoScoreIntent".equals(intent.getName())) {
+            return scoreKeeperManager.getUndoScoreIntentResponse(intent, session);
+
+        } else if ("TellScoreHistoryIntent".equals(intent.getName())) {
+            return scoreKeeperManager.getTellScoreHistoryIntentResponse(intent, session);
+
+        } else if ("TellGlobalLeaderboardIntent".equals(intent.getName())) {
+            return scoreKeeperManager.getTellGlobalLeaderboardIntentResponse(intent, session);
+
+        } else if ("TellGlobalRankIntent".equals(intent.getName())) {
+            return scoreKeeperManager.getTellGlobalRankIntentResponse(intent, session);
+
         } else if ("ResetPlayersIntent".equals(intent.getName())) {
             return scoreKeeperManager.getResetPlayersIntentResponse(intent, session);
 
@@ -138,17 +155,21 @@ public class ScoreKeeperSpeechlet implements Speechlet {
             throws SpeechletException {
         log.info("onSessionEnded requestId={}, sessionId={}", request.getRequestId(),
                 session.getSessionId());
-        // any cleanup logic goes here
+
+        // make sure the games saved during the session are durable
+        if (scoreKeeperManager != null) {
+            scoreKeeperManager.flush();
+        }
     }
 
     /**
-     * Initializes the instance components if needed.
+     * Initializes the instance components if needed. The components are shared by all requests,
+     * which may be handled concurrently.
      */
-    private void initializeComponents() {
-        if (amazonDynamoDBClient == null) {
-            amazonDynamoDBClient = new AmazonDynamoDBClient();
+    private synchronized void initializeComponents() {
+        if (scoreKeeperManager == null) {
+            amazonDynamoDBClient = ScoreKeeperDynamoDbClient.getSharedAmazonDynamoDBClient();
             scoreKeeperManager = new ScoreKeeperManager(amazonDynamoDBClient);
-            skillContext = new SkillContext();
         }
     }
 }
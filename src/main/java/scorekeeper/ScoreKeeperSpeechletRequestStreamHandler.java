@@ -9,8 +9,20 @@
  */
 package scorekeeper;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.TimeZone;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import scorekeeper.storage.ScoreKeeperDynamoDbClient;
 
 import com.amazon.speech.speechlet.lambda.SpeechletRequestStreamHandler;
 
@@ -20,10 +32,29 @@ import com.amazon.speech.speechlet.lambda.SpeechletRequestStreamHandler;
  * "scorekeeper.ScoreKeeperSpeechletRequestStreamHandler" For this to work, you'll also need to
  * build this project using the {@code lambda-compile} Ant task and upload the resulting zip file to
  * power your function.
+ * <p>
+ * The speechlet is created and primed while the class is initialized, that is during the init
+ * phase of the Lambda function, or before the snapshot is taken when SnapStart is enabled. Priming
+ * sends a synthetic help request through the whole request handling path, which creates the
+ * DynamoDB client and the ScoreKeeper components, warms up the DynamoDB mapper and loads the
+ * classes used to parse requests and write responses. The help intent does not read or write any
+ * game, so priming then describes the ScoreKeeperUserData table, which resolves the credentials
+ * and opens the first connection to DynamoDB. Priming can be disabled with
+ * {@code -Dscorekeeper.prime=false}.
  */
 public final class ScoreKeeperSpeechletRequestStreamHandler extends SpeechletRequestStreamHandler {
+    private static final Logger log = LoggerFactory.getLogger(
+            ScoreKeeperSpeechletRequestStreamHandler.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     private static final Set<String> supportedApplicationIds;
 
+    /**
+     * Speechlet shared by every handler instance, so that it is primed only once.
+     */
+    private static final ScoreKeeperSpeechlet speechlet;
+
     static {
         /*
          * This Id can be found on https://developer.amazon.com/edw/home.html#/ "Edit" the relevant
@@ -31,9 +62,84 @@ public final class ScoreKeeperSpeechletRequestStreamHandler extends SpeechletReq
          */
         supportedApplicationIds = new HashSet<String>();
         // supportedApplicationIds.add("amzn1.echo-sdk-ams.app.[unique-value-here]");
+
+        speechlet = new ScoreKeeperSpeechlet();
+        if (!"false".equals(System.getProperty("scorekeeper.prime"))) {
+            prime();
+        }
     }
 
     public ScoreKeeperSpeechletRequestStreamHandler() {
-        super(new ScoreKeeperSpeechlet(), supportedApplicationIds);
+        super(speechlet, supportedApplicationIds);
+    }
+
+    /**
+     * Sends a synthetic help request through a handler, and logs how long each step took.
+     */
+    private static void prime() {
+        long start = System.currentTimeMillis();
+        try {
+            ScoreKeeperSpeechletRequestStreamHandler handler =
+                    new ScoreKeeperSpeechletRequestStreamHandler();
+            long created = System.currentTimeMillis();
+
+            handleRequest(handler, newPrimingRequest());
+            long requested = System.currentTimeMillis();
+
+            try {
+                ScoreKeeperDynamoDbClient.connectSharedAmazonDynamoDBClient();
+            } catch (RuntimeException e) {
+                // the connection is still open when DynamoDB rejected the request
+                log.warn("Unable to connect to DynamoDB while priming ScoreKeeper", e);
+            }
+            long primed = System.currentTimeMillis();
+
+            log.info("Primed ScoreKeeper in {} ms: handler {} ms, first request {} ms, "
+                    + "DynamoDB {} ms", primed - start, created - start, requested - created,
+                    primed - requested);
+        } catch (IOException | RuntimeException e) {
+            // the first real request initializes whatever is missing
+            log.warn("Unable to prime ScoreKeeper", e);
+        }
+    }
+
+    /**
+     * Handles a request and returns the response.
+     *
+     * @param handler
+     *            the handler
+     * @param request
+     *            the request envelope as JSON
+     * @return the response envelope as JSON
+     * @throws IOException
+     *             if the request could not be handled
+     */
+    static String handleRequest(SpeechletRequestStreamHandler handler, String request)
+            throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        handler.handleRequest(new ByteArrayInputStream(request.getBytes(UTF8)), output, null);
+        return new String(output.toByteArray(), UTF8);
+    }
+
+    /**
+     * Returns a help request starting a new session, as JSON. The request is accepted by the
+     * application id verification, and its timestamp is the current time.
+     *
+     * @return the request envelope
+     */
+    static String newPrimingRequest() {
+        String applicationId =
+                supportedApplicationIds.isEmpty() ? "amzn1.echo-sdk-ams.app.priming"
+                        : supportedApplicationIds.iterator().next();
+        SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        return "{\"version\":\"1.0\",\"session\":{\"new\":true,"
+                + "\"sessionId\":\"SessionId.priming\",\"application\":{\"applicationId\":\""
+                + applicationId + "\"},\"attributes\":{},\"user\":{\"userId\":"
+                + "\"amzn1.account.priming\"}},\"request\":{\"type\":\"IntentRequest\","
+                + "\"requestId\":\"EdwRequestId.priming\",\"timestamp\":\""
+                + timestampFormat.format(new Date()) + "\",\"intent\":{\"name\":\"HelpIntent\","
+                + "\"slots\":{}}}}";
     }
 }
@@ -9,12 +9,46 @@
  */
 package scorekeeper;
 
+import com.amazon.speech.speechlet.Session;
+
 /**
  * Contains session scoped settings.
+ * <p>
+ * The settings are stored in the session attributes, and a new context is read from them for each
+ * request, so that requests of different sessions never share a context.
  */
 public class SkillContext {
+    /**
+     * Session attribute holding whether the user needs more help.
+     */
+    private static final String SESSION_NEEDS_MORE_HELP = "needsMoreHelp";
+
     private boolean needsMoreHelp = true;
 
+    /**
+     * Reads the settings of a session.
+     *
+     * @param session
+     *            {@link Session} of the request
+     * @return the settings, with default values for those not set in the session
+     */
+    public static SkillContext fromSession(Session session) {
+        SkillContext skillContext = new SkillContext();
+        skillContext.setNeedsMoreHelp(!Boolean.FALSE.equals(session
+                .getAttribute(SESSION_NEEDS_MORE_HELP)));
+        return skillContext;
+    }
+
+    /**
+     * Stores the settings in a session, so that the following requests of the session see them.
+     *
+     * @param session
+     *            {@link Session} of the request
+     */
+    public void saveTo(Session session) {
+        session.setAttribute(SESSION_NEEDS_MORE_HELP, Boolean.valueOf(needsMoreHelp));
+    }
+
     public boolean needsMoreHelp() {
         return needsMoreHelp;
     }
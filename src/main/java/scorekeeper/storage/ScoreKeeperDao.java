@@ -1,15 +1,139 @@
 package scorekeeper.storage;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.amazon.speech.speechlet.Session;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+
+import common.LoadingCache;
 
 /**
  * Contains the methods to interact with the persistence layer for ScoreKeeper in DynamoDB.
+ * <p>
+ * When the {@code scorekeeper.writeBehind} system property is true, saves are acknowledged from
+ * memory and written to DynamoDB in the background by a {@link ScoreKeeperWriteBehindQueue},
+ * flushed every {@code scorekeeper.writeBehind.intervalMillis} milliseconds. Callers must then
+ * call {@link #flush()} when a session ends. The queue keeps the changes along with the game, and
+ * applies them again if another server saved the game before the queued game is written. Only use
+ * write-behind on a long-running server: a game still queued when the process is killed is lost.
+ * <p>
+ * Loaded items are kept in a bounded read-through cache keyed by customer id, so the intents of a
+ * session do not reload the game that was just saved. Entries expire after
+ * {@code scorekeeper.cache.ttlSeconds} seconds, which bounds how stale a game saved by another
+ * server can be. Items carry a version that the save checks, so a save based on a stale cached
+ * game is rejected instead of overwriting the newer game. The change is then applied again to the
+ * game reloaded with a consistent read, a bounded number of times.
+ * <p>
+ * When the {@code scorekeeper.eventLog} system property is true, games are stored by a
+ * {@link ScoreKeeperEventLog}: adding a player, adding a score and resetting the scores each append
+ * one event, which also makes undoing the last score and reading the score history possible.
+ * Resetting the players appends an event too, and games are never saved as a whole. The event log
+ * takes precedence over write-behind. Once enabled, it must stay enabled, as saving a game without
+ * it drops the sequence of the snapshot.
  */
 public class ScoreKeeperDao {
+    private static final Logger log = LoggerFactory.getLogger(ScoreKeeperDao.class);
+
+    /**
+     * Default time in milliseconds between two background flushes in write-behind mode.
+     */
+    private static final long DEFAULT_WRITE_BEHIND_INTERVAL_MILLIS = 250;
+
+    /**
+     * Default maximum number of customers kept in the cache.
+     */
+    private static final long DEFAULT_CACHE_MAX_SIZE = 10000;
+
+    /**
+     * Default time in seconds after which a cached game is loaded again.
+     */
+    private static final long DEFAULT_CACHE_TTL_SECONDS = 60;
+
+    /**
+     * Default number of events after which a game is compacted.
+     */
+    private static final long DEFAULT_SNAPSHOT_EVENTS = 50;
+
+    /**
+     * Default number of events kept as the history of a game.
+     */
+    private static final long DEFAULT_HISTORY_EVENTS = 20;
+
+    /**
+     * Default time in milliseconds between two background compactions of the event log.
+     */
+    private static final long DEFAULT_COMPACT_INTERVAL_MILLIS = 60000;
+
+    /**
+     * Number of times a change is saved or an event is appended before giving up, when other
+     * devices keep changing the game.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
     private final ScoreKeeperDynamoDbClient dynamoDbClient;
 
+    /**
+     * Items by customer id. Customers without a stored game are cached as an item without game
+     * data. Cached items are never mutated, except for attaching the leaderboard of their game.
+     */
+    private final LoadingCache<String, ScoreKeeperUserDataItem> cache;
+
+    /**
+     * Queue of unsaved games, or null if write-behind is disabled.
+     */
+    private final ScoreKeeperWriteBehindQueue writeBehindQueue;
+
+    /**
+     * Event log storing the games, or null if it is disabled.
+     */
+    private final ScoreKeeperEventLog eventLog;
+
     public ScoreKeeperDao(ScoreKeeperDynamoDbClient dynamoDbClient) {
         this.dynamoDbClient = dynamoDbClient;
+        if (Boolean.parseBoolean(System.getProperty("scorekeeper.eventLog"))) {
+            eventLog =
+                    new ScoreKeeperEventLog(dynamoDbClient, (int) getLongProperty(
+                            "scorekeeper.eventLog.snapshotEvents", DEFAULT_SNAPSHOT_EVENTS),
+                            (int) getLongProperty("scorekeeper.eventLog.historyEvents",
+                                    DEFAULT_HISTORY_EVENTS), getLongProperty(
+                                    "scorekeeper.eventLog.compactIntervalMillis",
+                                    DEFAULT_COMPACT_INTERVAL_MILLIS));
+        } else {
+            eventLog = null;
+        }
+        this.cache =
+                new LoadingCache<String, ScoreKeeperUserDataItem>((int) getLongProperty(
+                        "scorekeeper.cache.maxSize", DEFAULT_CACHE_MAX_SIZE),
+                        TimeUnit.SECONDS.toMillis(getLongProperty("scorekeeper.cache.ttlSeconds",
+                                DEFAULT_CACHE_TTL_SECONDS)),
+                        new LoadingCache.Loader<String, ScoreKeeperUserDataItem>() {
+                            @Override
+                            public ScoreKeeperUserDataItem load(String customerId) {
+                                return eventLog != null ? eventLog.load(customerId)
+                                        : loadItem(customerId);
+                            }
+                        });
+        if (Boolean.parseBoolean(System.getProperty("scorekeeper.writeBehind"))
+                && eventLog != null) {
+            log.warn("Ignoring scorekeeper.writeBehind, games are stored in the event log");
+            writeBehindQueue = null;
+        } else if (Boolean.parseBoolean(System.getProperty("scorekeeper.writeBehind"))) {
+            writeBehindQueue =
+                    new ScoreKeeperWriteBehindQueue(dynamoDbClient, getLongProperty(
+                            "scorekeeper.writeBehind.intervalMillis",
+                            DEFAULT_WRITE_BEHIND_INTERVAL_MILLIS));
+        } else {
+            writeBehindQueue = null;
+        }
     }
 
     /**
@@ -21,28 +145,467 @@ public class ScoreKeeperDao {
      * @return
      */
     public ScoreKeeperGame getScoreKeeperGame(Session session) {
-        ScoreKeeperUserDataItem item = new ScoreKeeperUserDataItem();
-        item.setCustomerId(session.getUser().getUserId());
-
-        item = dynamoDbClient.loadItem(item);
+        String customerId = session.getUser().getUserId();
+        if (writeBehindQueue != null) {
+            ScoreKeeperGameData gameData = writeBehindQueue.get(customerId);
+            if (gameData != null) {
+                return ScoreKeeperGame.newInstance(session, gameData);
+            }
+        }
 
-        if (item == null) {
+        ScoreKeeperUserDataItem item = getItem(customerId);
+        ScoreKeeperGameData gameData = item.toGameData();
+        if (gameData == null) {
             return null;
         }
 
-        return ScoreKeeperGame.newInstance(session, item.getGameData());
+        // the leaderboard is built once per cached item, and derived by games changing scores
+        ScoreKeeperLeaderboard leaderboard = item.getLeaderboard();
+        if (leaderboard == null) {
+            leaderboard = ScoreKeeperLeaderboard.newInstance(gameData);
+            item.setLeaderboard(leaderboard);
+        }
+
+        ScoreKeeperGame game = ScoreKeeperGame.newInstance(session, gameData);
+        game.setVersion(item.getVersion());
+        game.setLeaderboard(leaderboard);
+        return game;
     }
 
     /**
      * Saves the {@link ScoreKeeperGame} into the database.
      * 
      * @param game
+     * @throws ConditionalCheckFailedException
+     *             if the game was saved by another writer since it was loaded
+     * @throws IllegalStateException
+     *             if games are stored in the event log, where a whole game would overwrite the
+     *             events appended by other devices
      */
     public void saveScoreKeeperGame(ScoreKeeperGame game) {
+        if (eventLog != null) {
+            throw new IllegalStateException("Games stored in the event log are changed by "
+                    + "appending events");
+        }
+
+        String customerId = game.getSession().getUser().getUserId();
+        if (writeBehindQueue != null) {
+            // the whole game replaces the stored one, whatever other servers saved meanwhile
+            final ScoreKeeperGameData gameData = game.getGameData().copy();
+            queue(game, new GameChange() {
+                @Override
+                public void applyTo(ScoreKeeperGame game) {
+                    game.setGameData(gameData.copy());
+                }
+            });
+            return;
+        }
+
+        ScoreKeeperUserDataItem item =
+                ScoreKeeperUserDataItem.newInstance(customerId, game.getGameData());
+        item.setVersion(game.getVersion());
+
+        try {
+            dynamoDbClient.saveItem(item);
+        } catch (ConditionalCheckFailedException e) {
+            log.warn("Game of {} was changed by another writer, dropping cached copy", customerId);
+            cache.invalidate(customerId);
+            throw e;
+        }
+
+        // the mapper incremented the version of the saved item
+        game.setVersion(item.getVersion());
+        item.setLeaderboard(game.getLeaderboard());
+        cache.put(customerId, item);
+    }
+
+    /**
+     * Adds to the score of a player and saves it. The score is updated in place in the database,
+     * so concurrent updates from other devices are not lost and the rest of the game is not
+     * rewritten. The game is refreshed with the stored scores, including other devices' updates.
+     * <p>
+     * Games stored in the binary encoding or still in the legacy layout are saved as a whole.
+     *
+     * @param game
+     *            the game, loaded with {@link #getScoreKeeperGame(Session)}
+     * @param playerName
+     *            name of the player
+     * @param score
+     *            score to be added
+     * @return true if the player existed, false otherwise
+     */
+    public boolean addScoreForPlayer(ScoreKeeperGame game, final String playerName,
+            final long score) {
+        if (!game.hasPlayer(playerName)) {
+            return false;
+        }
+
+        if (eventLog != null) {
+            appendEvent(game, ScoreKeeperGameEventItem.newInstance(getCustomerId(game),
+                    ScoreKeeperGameEventItem.TYPE_ADD_SCORE, playerName, Long.valueOf(score)));
+            return true;
+        }
+
+        String customerId = getCustomerId(game);
+        if (writeBehindQueue == null) {
+            ScoreKeeperUserDataItem item;
+            try {
+                item = dynamoDbClient.addScore(customerId, playerName, score);
+            } catch (ConditionalCheckFailedException e) {
+                // no score stored for the player: a legacy item, or the game was reset
+                item = null;
+            }
+            if (item != null) {
+                game.setGameData(item.toGameData());
+                game.setVersion(item.getVersion());
+                item.setLeaderboard(game.getLeaderboard());
+                cache.put(customerId, item);
+                return true;
+            }
+        }
+
+        update(game, new GameChange() {
+            @Override
+            public void applyTo(ScoreKeeperGame game) {
+                game.addScoreForPlayer(playerName, score);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Adds a player to the game and saves it.
+     *
+     * @param game
+     *            the game
+     * @param playerName
+     *            name of the player
+     */
+    public void addPlayer(ScoreKeeperGame game, final String playerName) {
+        if (eventLog != null) {
+            appendEvent(game, ScoreKeeperGameEventItem.newInstance(getCustomerId(game),
+                    ScoreKeeperGameEventItem.TYPE_ADD_PLAYER, playerName, null));
+            return;
+        }
+
+        update(game, new GameChange() {
+            @Override
+            public void applyTo(ScoreKeeperGame game) {
+                game.addPlayer(playerName);
+            }
+        });
+    }
+
+    /**
+     * Resets the scores of all players of the game to zero and saves it.
+     *
+     * @param game
+     *            the game
+     */
+    public void resetScores(ScoreKeeperGame game) {
+        if (eventLog != null) {
+            appendEvent(game, ScoreKeeperGameEventItem.newInstance(getCustomerId(game),
+                    ScoreKeeperGameEventItem.TYPE_RESET_SCORES, null, null));
+            return;
+        }
+
+        update(game, new GameChange() {
+            @Override
+            public void applyTo(ScoreKeeperGame game) {
+                game.resetScores();
+            }
+        });
+    }
+
+    /**
+     * Removes all players from the game of a customer and saves it, replacing the stored game if
+     * there is one.
+     *
+     * @param session
+     *            the session of the customer
+     */
+    public void resetPlayers(Session session) {
+        ScoreKeeperGame game =
+                ScoreKeeperGame.newInstance(session, ScoreKeeperGameData.newInstance());
+        if (eventLog != null) {
+            appendEvent(game, ScoreKeeperGameEventItem.newInstance(getCustomerId(game),
+                    ScoreKeeperGameEventItem.TYPE_RESET_PLAYERS, null, null));
+            return;
+        }
+        // the save replaces the stored game, so it must be based on its version
+        game.setVersion(getItem(getCustomerId(game)).getVersion());
+        update(game, new GameChange() {
+            @Override
+            public void applyTo(ScoreKeeperGame game) {
+                game.setGameData(ScoreKeeperGameData.newInstance());
+            }
+        });
+    }
+
+    /**
+     * Returns true if games are stored in the event log, so that scores can be undone and their
+     * history read.
+     *
+     * @return true if the event log is enabled
+     */
+    public boolean hasEventLog() {
+        return eventLog != null;
+    }
+
+    /**
+     * Takes back the latest score added to the game since its scores were last reset, and which
+     * was not undone yet. If another device changed the game at the same time, the history is read
+     * again before retrying, so two concurrent undos take back two different scores.
+     *
+     * @param game
+     *            the game
+     * @return the event of the undone score, or null if there is no score to undo or the event log
+     *         is disabled
+     */
+    public ScoreKeeperGameEventItem undoLastScore(ScoreKeeperGame game) {
+        String customerId = getCustomerId(game);
+        for (int attempt = 1;; attempt++) {
+            List<ScoreKeeperGameEventItem> scores = getScoreHistory(game, 1);
+            if (scores.isEmpty()) {
+                return null;
+            }
+
+            ScoreKeeperGameEventItem undone = scores.get(0);
+            ScoreKeeperGameEventItem undo =
+                    ScoreKeeperGameEventItem.newInstance(customerId,
+                            ScoreKeeperGameEventItem.TYPE_UNDO_SCORE, undone.getPlayerName(),
+                            Long.valueOf(-undone.getScore().longValue()));
+            undo.setUndoneSequence(undone.getSequence());
+            try {
+                tryAppendEvent(game, undo);
+                return undone;
+            } catch (ConditionalCheckFailedException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                log.info("Game of {} was changed by another writer, undoing again", customerId);
+            }
+        }
+    }
+
+    /**
+     * Returns the latest scores added to the game since its scores were last reset, leaving out
+     * undone scores. Only the scores among the events kept as history are returned.
+     *
+     * @param game
+     *            the game
+     * @param count
+     *            maximum number of scores to return
+     * @return the events of the scores, latest first; empty if the event log is disabled
+     */
+    public List<ScoreKeeperGameEventItem> getScoreHistory(ScoreKeeperGame game, int count) {
+        if (eventLog == null) {
+            return Collections.emptyList();
+        }
+
+        List<ScoreKeeperGameEventItem> scores = new ArrayList<ScoreKeeperGameEventItem>();
+        Set<Long> undoneSequences = new HashSet<Long>();
+        for (ScoreKeeperGameEventItem event : eventLog.loadHistory(getCustomerId(game))) {
+            if (scores.size() >= count
+                    || ScoreKeeperGameEventItem.TYPE_RESET_SCORES.equals(event.getType())
+                    || ScoreKeeperGameEventItem.TYPE_RESET_PLAYERS.equals(event.getType())) {
+                break;
+            }
+            if (ScoreKeeperGameEventItem.TYPE_UNDO_SCORE.equals(event.getType())) {
+                undoneSequences.add(event.getUndoneSequence());
+            } else if (ScoreKeeperGameEventItem.TYPE_ADD_SCORE.equals(event.getType())
+                    && !undoneSequences.contains(event.getSequence())) {
+                scores.add(event);
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Applies a change to a game and saves the whole game. If another device saved the game in
+     * the meantime, the game is reloaded and the change is applied to it again.
+     */
+    private void update(ScoreKeeperGame game, GameChange change) {
+        if (writeBehindQueue != null) {
+            change.applyTo(game);
+            queue(game, change);
+            return;
+        }
+
+        String customerId = getCustomerId(game);
+        for (int attempt = 1;; attempt++) {
+            change.applyTo(game);
+            try {
+                saveScoreKeeperGame(game);
+                return;
+            } catch (ConditionalCheckFailedException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                log.info("Game of {} was changed by another writer, saving again", customerId);
+            }
+
+            ScoreKeeperUserDataItem item = reload(customerId);
+            ScoreKeeperGameData gameData = item.toGameData();
+            game.setGameData(gameData != null ? gameData : ScoreKeeperGameData.newInstance());
+            game.setVersion(item.getVersion());
+        }
+    }
+
+    /**
+     * Queues a change to a game in write-behind mode, and refreshes the game with the queued game,
+     * which includes the changes queued by other requests.
+     */
+    private void queue(ScoreKeeperGame game, GameChange change) {
+        String customerId = getCustomerId(game);
+        // the queued copy is authoritative until it is written
+        cache.invalidate(customerId);
+        game.setGameData(writeBehindQueue.put(customerId, game.getGameData(), game.getVersion(),
+                change));
+    }
+
+    /**
+     * Appends an event to the event log and refreshes the game with the result, including the
+     * changes of other devices. The event is appended again if another device changed the game at
+     * the same time.
+     */
+    private void appendEvent(ScoreKeeperGame game, ScoreKeeperGameEventItem event) {
+        for (int attempt = 1;; attempt++) {
+            try {
+                tryAppendEvent(game, event);
+                return;
+            } catch (ConditionalCheckFailedException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+                log.info("Game of {} was changed by another writer, appending again",
+                        event.getCustomerId());
+            }
+        }
+    }
+
+    /**
+     * Appends an event to the event log once and refreshes the game with the result. If another
+     * device changed the game, the cached game is dropped so that the next attempt reloads it.
+     */
+    private void tryAppendEvent(ScoreKeeperGame game, ScoreKeeperGameEventItem event) {
+        String customerId = event.getCustomerId();
+        ScoreKeeperUserDataItem item;
+        try {
+            item = eventLog.append(getItem(customerId), event);
+        } catch (ConditionalCheckFailedException e) {
+            cache.invalidate(customerId);
+            throw e;
+        }
+        game.setGameData(item.toGameData());
+        game.setVersion(item.getVersion());
+        item.setLeaderboard(game.getLeaderboard());
+        cache.put(customerId, item);
+    }
+
+    /**
+     * Returns the cached item of a customer, loading it if needed.
+     */
+    private ScoreKeeperUserDataItem getItem(String customerId) {
+        try {
+            return cache.get(customerId);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Loads the latest item of a customer with a consistent read, and caches it.
+     */
+    private ScoreKeeperUserDataItem reload(String customerId) {
+        ScoreKeeperUserDataItem item;
+        if (eventLog != null) {
+            item = eventLog.load(customerId);
+        } else {
+            item = new ScoreKeeperUserDataItem();
+            item.setCustomerId(customerId);
+            ScoreKeeperUserDataItem loaded = dynamoDbClient.loadItem(item, true);
+            item = loaded != null ? loaded : item;
+        }
+        cache.put(customerId, item);
+        return item;
+    }
+
+    private static String getCustomerId(ScoreKeeperGame game) {
+        return game.getSession().getUser().getUserId();
+    }
+
+    /**
+     * Returns the number of game reads served from the cache.
+     *
+     * @return the number of cache hits
+     */
+    public long getCacheHitCount() {
+        return cache.getHitCount();
+    }
+
+    /**
+     * Returns the number of game reads that loaded the game from the database.
+     *
+     * @return the number of cache misses
+     */
+    public long getCacheMissCount() {
+        return cache.getMissCount();
+    }
+
+    /**
+     * Loads the item of a customer, or returns an item without game data if there is none.
+     */
+    private ScoreKeeperUserDataItem loadItem(String customerId) {
         ScoreKeeperUserDataItem item = new ScoreKeeperUserDataItem();
-        item.setCustomerId(game.getSession().getUser().getUserId());
-        item.setGameData(game.getGameData());
+        item.setCustomerId(customerId);
 
-        dynamoDbClient.saveItem(item);
+        ScoreKeeperUserDataItem loaded = dynamoDbClient.loadItem(item);
+        return loaded != null ? loaded : item;
+    }
+
+    /**
+     * Rethrows the cause of a failed cache load.
+     */
+    private static RuntimeException unwrap(ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+            return (RuntimeException) e.getCause();
+        }
+        return new IllegalStateException("Unable to load game", e.getCause());
+    }
+
+    /**
+     * A change to a game, applied again to the reloaded game when the save conflicts with another
+     * device.
+     */
+    interface GameChange {
+        void applyTo(ScoreKeeperGame game);
+    }
+
+    /**
+     * Writes the games saved in write-behind mode to the database and waits for the writes to
+     * complete. Does nothing if write-behind is disabled.
+     */
+    public void flush() {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.flush();
+        }
+    }
+
+    /**
+     * Reads a numeric setting from the system properties, falling back to the default value if
+     * the property is missing or malformed.
+     */
+    private static long getLongProperty(final String name, final long defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value {} for {}", value, name);
+            return defaultValue;
+        }
     }
 }
@@ -1,47 +1,341 @@
 package scorekeeper.storage;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapperConfig;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBQueryExpression;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBSaveExpression;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ComparisonOperator;
+import com.amazonaws.services.dynamodbv2.model.Condition;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ExpectedAttributeValue;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
 
 /**
  * Client for DynamoDB persistance layer for the Score Keeper skill.
+ * <p>
+ * A single {@link DynamoDBMapper} is created per client and reused by every call. The mapper is
+ * thread-safe and caches the reflected table model, so its metadata is warmed up when the client
+ * is created instead of on the first voice request.
  */
 public class ScoreKeeperDynamoDbClient {
+    private static final Logger log = LoggerFactory.getLogger(ScoreKeeperDynamoDbClient.class);
+
+    /**
+     * Default maximum number of pooled connections to DynamoDB, matching the default number of
+     * concurrent requests a skill may serve.
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS = 50;
+
+    private static final String TABLE_NAME = ScoreKeeperUserDataItem.class.getAnnotation(
+            DynamoDBTable.class).tableName();
+
+    private static final DynamoDBMapperConfig CONSISTENT_READS = new DynamoDBMapperConfig(
+            DynamoDBMapperConfig.ConsistentReads.CONSISTENT);
+
     private final AmazonDynamoDBClient dynamoDBClient;
 
+    private final DynamoDBMapper mapper;
+
     public ScoreKeeperDynamoDbClient(final AmazonDynamoDBClient dynamoDBClient) {
         this.dynamoDBClient = dynamoDBClient;
+        this.mapper = createDynamoDBMapper();
+        warmUp();
+    }
+
+    /**
+     * Returns the DynamoDB client shared by all Score Keeper components. Its connection pool is
+     * sized with the {@code scorekeeper.dynamodb.maxConnections} system property.
+     *
+     * @return the shared {@link AmazonDynamoDBClient}
+     */
+    public static AmazonDynamoDBClient getSharedAmazonDynamoDBClient() {
+        return SharedClientHolder.CLIENT;
+    }
+
+    /**
+     * Describes the ScoreKeeperUserData table with the shared client. This resolves the
+     * credentials and opens a first connection to DynamoDB without reading any item, so it can be
+     * used to warm up the client before the first request.
+     *
+     * @throws com.amazonaws.AmazonClientException
+     *             if DynamoDB cannot be reached or the table cannot be described
+     */
+    public static void connectSharedAmazonDynamoDBClient() {
+        getSharedAmazonDynamoDBClient().describeTable(TABLE_NAME);
     }
 
     /**
      * Loads an item from DynamoDB by primary Hash Key. Callers of this method should pass in an
      * object which represents an item in the DynamoDB table item with the primary key populated.
-     * 
+     *
      * @param tableItem
      * @return
      */
     public ScoreKeeperUserDataItem loadItem(final ScoreKeeperUserDataItem tableItem) {
-        DynamoDBMapper mapper = createDynamoDBMapper();
         ScoreKeeperUserDataItem item = mapper.load(tableItem);
         return item;
     }
 
+    /**
+     * Loads an item from DynamoDB by primary Hash Key, optionally with a consistent read that
+     * returns the latest save.
+     *
+     * @param tableItem
+     *            an item with the primary key populated
+     * @param consistentRead
+     *            true to read the latest save
+     * @return the item, or null if there is none
+     */
+    public ScoreKeeperUserDataItem loadItem(final ScoreKeeperUserDataItem tableItem,
+            final boolean consistentRead) {
+        if (!consistentRead) {
+            return loadItem(tableItem);
+        }
+        return mapper.load(tableItem, CONSISTENT_READS);
+    }
+
     /**
      * Stores an item to DynamoDB.
-     * 
+     *
      * @param tableItem
      */
     public void saveItem(final ScoreKeeperUserDataItem tableItem) {
-        DynamoDBMapper mapper = createDynamoDBMapper();
         mapper.save(tableItem);
     }
 
+    /**
+     * Adds to the score of a player in place, and increments the item version. Only the score is
+     * sent, so the cost does not depend on the number of players.
+     *
+     * @param customerId
+     *            the customer id
+     * @param playerName
+     *            name of the player
+     * @param score
+     *            score to be added
+     * @return the updated item
+     * @throws ConditionalCheckFailedException
+     *             if the item has no score for the player, for instance because it is stored in
+     *             the legacy layout
+     */
+    public ScoreKeeperUserDataItem addScore(final String customerId, final String playerName,
+            final long score) {
+        Map<String, AttributeValue> key = new HashMap<String, AttributeValue>();
+        key.put("CustomerId", new AttributeValue(customerId));
+
+        Map<String, String> names = new HashMap<String, String>();
+        names.put("#player", playerName);
+        Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+        values.put(":score", new AttributeValue().withN(Long.toString(score)));
+        values.put(":one", new AttributeValue().withN("1"));
+
+        // ADD only applies to top-level attributes, so the nested score is incremented with SET
+        UpdateItemRequest request =
+                new UpdateItemRequest()
+                        .withTableName(TABLE_NAME)
+                        .withKey(key)
+                        .withUpdateExpression(
+                                "SET Scores.#player = Scores.#player + :score ADD Version :one")
+                        .withConditionExpression("attribute_exists(Scores.#player)")
+                        .withExpressionAttributeNames(names)
+                        .withExpressionAttributeValues(values)
+                        .withReturnValues(ReturnValue.ALL_NEW);
+        UpdateItemResult result = dynamoDBClient.updateItem(request);
+        return mapper.marshallIntoObject(ScoreKeeperUserDataItem.class, result.getAttributes());
+    }
+
+    /**
+     * Appends an event to the event log of a game. The event must be numbered with the sequence
+     * following the last event of the game.
+     *
+     * @param event
+     *            the event
+     * @throws ConditionalCheckFailedException
+     *             if an event with the same sequence was already appended, for instance by
+     *             another device
+     */
+    public void appendEvent(final ScoreKeeperGameEventItem event) {
+        mapper.save(event, new DynamoDBSaveExpression().withExpectedEntry("Sequence",
+                new ExpectedAttributeValue(false)));
+    }
+
+    /**
+     * Reads the sequence of the last event included in the snapshot of a game, with a consistent
+     * read.
+     *
+     * @param customerId
+     *            the customer id
+     * @return the sequence, or 0 if the game has no snapshot including events
+     */
+    public long loadSnapshotSequence(final String customerId) {
+        Map<String, AttributeValue> key = new HashMap<String, AttributeValue>();
+        key.put("CustomerId", new AttributeValue(customerId));
+        GetItemResult result =
+                dynamoDBClient.getItem(new GetItemRequest()
+                        .withTableName(TABLE_NAME)
+                        .withKey(key)
+                        .withProjectionExpression("#sequence")
+                        .withExpressionAttributeNames(
+                                Collections.singletonMap("#sequence", "Sequence"))
+                        .withConsistentRead(Boolean.TRUE));
+        if (result.getItem() == null || result.getItem().get("Sequence") == null) {
+            return 0L;
+        }
+        return Long.parseLong(result.getItem().get("Sequence").getN());
+    }
+
+    /**
+     * Deletes an event from the event log of a game.
+     *
+     * @param event
+     *            the event
+     */
+    public void deleteEvent(final ScoreKeeperGameEventItem event) {
+        mapper.delete(event);
+    }
+
+    /**
+     * Loads the events of a game following a sequence, in ascending order of sequence.
+     *
+     * @param customerId
+     *            the customer id
+     * @param afterSequence
+     *            sequence of the last event already known, 0 for all events
+     * @return the events
+     */
+    public List<ScoreKeeperGameEventItem> loadEvents(final String customerId,
+            final long afterSequence) {
+        return new ArrayList<ScoreKeeperGameEventItem>(mapper.query(
+                ScoreKeeperGameEventItem.class,
+                newEventQuery(customerId, ComparisonOperator.GT, afterSequence)));
+    }
+
+    /**
+     * Loads the latest events of a game, in descending order of sequence.
+     *
+     * @param customerId
+     *            the customer id
+     * @param count
+     *            maximum number of events to load
+     * @return the events
+     */
+    public List<ScoreKeeperGameEventItem> loadLatestEvents(final String customerId,
+            final int count) {
+        return mapper.queryPage(
+                ScoreKeeperGameEventItem.class,
+                newEventQuery(customerId, ComparisonOperator.GT, 0).withScanIndexForward(false)
+                        .withLimit(Integer.valueOf(count))).getResults();
+    }
+
+    /**
+     * Deletes the events of a game up to a sequence.
+     *
+     * @param customerId
+     *            the customer id
+     * @param toSequence
+     *            sequence of the last event to delete
+     * @return the number of events deleted
+     */
+    public int deleteEvents(final String customerId, final long toSequence) {
+        List<ScoreKeeperGameEventItem> events =
+                new ArrayList<ScoreKeeperGameEventItem>(mapper.query(
+                        ScoreKeeperGameEventItem.class,
+                        newEventQuery(customerId, ComparisonOperator.LE, toSequence)));
+        for (DynamoDBMapper.FailedBatch failedBatch : mapper.batchDelete(events)) {
+            // the remaining events are deleted by the next compaction
+            log.warn("Batch delete failed", failedBatch.getException());
+        }
+        return events.size();
+    }
+
+    /**
+     * Creates a query for the events of a game, comparing their sequence with a value.
+     */
+    private static DynamoDBQueryExpression<ScoreKeeperGameEventItem> newEventQuery(
+            final String customerId, final ComparisonOperator operator, final long sequence) {
+        ScoreKeeperGameEventItem hashKey = new ScoreKeeperGameEventItem();
+        hashKey.setCustomerId(customerId);
+        Condition condition =
+                new Condition().withComparisonOperator(operator).withAttributeValueList(
+                        new AttributeValue().withN(Long.toString(sequence)));
+        return new DynamoDBQueryExpression<ScoreKeeperGameEventItem>().withHashKeyValues(hashKey)
+                .withRangeKeyCondition("Sequence", condition);
+    }
+
     /**
      * Creates a {@link DynamoDBMapper} using the default configurations.
-     * 
+     *
      * @return
      */
     private DynamoDBMapper createDynamoDBMapper() {
         return new DynamoDBMapper(dynamoDBClient);
     }
+
+    /**
+     * Makes the mapper reflect the {@link ScoreKeeperUserDataItem} annotations and run the game
+     * data marshaller once, without calling DynamoDB.
+     */
+    private void warmUp() {
+        long start = System.currentTimeMillis();
+        try {
+            mapper.generateCreateTableRequest(ScoreKeeperUserDataItem.class);
+            mapper.generateCreateTableRequest(ScoreKeeperGameEventItem.class);
+
+            Map<String, AttributeValue> attributes = new HashMap<String, AttributeValue>();
+            attributes.put("CustomerId", new AttributeValue("warm-up"));
+            attributes.put("Players", new AttributeValue().withL(new AttributeValue("warm-up")));
+            attributes.put("Scores", new AttributeValue().withM(Collections.singletonMap(
+                    "warm-up", new AttributeValue().withN("0"))));
+            attributes.put("Data", new AttributeValue(
+                    new ScoreKeeperUserDataItem.ScoreKeeperGameDataMarshaller()
+                            .marshall(ScoreKeeperGameData.newInstance())));
+            mapper.marshallIntoObject(ScoreKeeperUserDataItem.class, attributes);
+            log.info("Warmed up DynamoDB mapper in {} ms", System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            // the first real request pays for the reflection instead
+            log.warn("Unable to warm up DynamoDB mapper", e);
+        }
+    }
+
+    /**
+     * Reads the pool size from the {@code scorekeeper.dynamodb.maxConnections} system property.
+     */
+    private static int getMaxConnections() {
+        String value = System.getProperty("scorekeeper.dynamodb.maxConnections");
+        if (value == null) {
+            return DEFAULT_MAX_CONNECTIONS;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value {} for scorekeeper.dynamodb.maxConnections", value);
+            return DEFAULT_MAX_CONNECTIONS;
+        }
+    }
+
+    /**
+     * Lazily creates the shared client on first use.
+     */
+    private static final class SharedClientHolder {
+        private static final AmazonDynamoDBClient CLIENT = new AmazonDynamoDBClient(
+                new ClientConfiguration().withMaxConnections(getMaxConnections()).withTcpKeepAlive(
+                        true));
+    }
 }
@@ -0,0 +1,238 @@
+package scorekeeper.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+
+/**
+ * Stores games as a snapshot followed by a log of {@link ScoreKeeperGameEventItem events}.
+ * <p>
+ * A change to a game appends one small event instead of rewriting the whole game, so its cost does
+ * not depend on the size of the game. Loading a game reads the snapshot, an item of the
+ * ScoreKeeperUserData table, and replays the events following the snapshot's sequence.
+ * <p>
+ * Games with many events since their snapshot are compacted in the background: the replayed game
+ * is saved as the new snapshot, and the events it includes are deleted except for the latest
+ * ones, which are kept as the history of the game. Compaction checks the snapshot version, so two
+ * servers compacting the same game do not overwrite each other.
+ * <p>
+ * An event can only be appended with the sequence following the last event, since its put fails
+ * if the sequence is taken. A server whose cached game is older than a compaction may however
+ * append a sequence that the compaction already included in the snapshot and deleted. Such an
+ * event would never be replayed, so after each append the sequence of the snapshot is read again,
+ * and an event it already covers is deleted and rejected like a taken sequence.
+ */
+public class ScoreKeeperEventLog {
+    private static final Logger log = LoggerFactory.getLogger(ScoreKeeperEventLog.class);
+
+    private final ScoreKeeperDynamoDbClient dynamoDbClient;
+
+    private final int snapshotEvents;
+
+    private final int historyEvents;
+
+    /**
+     * Customer ids of the games to compact.
+     */
+    private final ConcurrentMap<String, Boolean> compactions =
+            new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * Creates an event log and starts compacting it in the background.
+     *
+     * @param dynamoDbClient
+     *            client used to read and write the games
+     * @param snapshotEvents
+     *            number of events after which a game is compacted
+     * @param historyEvents
+     *            number of events kept after a compaction
+     * @param compactIntervalMillis
+     *            time in milliseconds between two background compactions
+     */
+    public ScoreKeeperEventLog(final ScoreKeeperDynamoDbClient dynamoDbClient,
+            final int snapshotEvents, final int historyEvents, final long compactIntervalMillis) {
+        this.dynamoDbClient = dynamoDbClient;
+        this.snapshotEvents = Math.max(1, snapshotEvents);
+        this.historyEvents = Math.max(0, historyEvents);
+
+        ScheduledExecutorService executor =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "scorekeeper-event-log-compaction");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        }, compactIntervalMillis, compactIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of events kept as the history of a game.
+     *
+     * @return the number of events
+     */
+    public int getHistoryEvents() {
+        return historyEvents;
+    }
+
+    /**
+     * Loads the game of a customer, replaying the events following its snapshot.
+     *
+     * @param customerId
+     *            the customer id
+     * @return an item holding the game, the version of its snapshot and the sequence of its last
+     *         event; without game data if the customer has no game
+     */
+    ScoreKeeperUserDataItem load(final String customerId) {
+        return replay(loadSnapshot(customerId), true);
+    }
+
+    /**
+     * Appends an event to the game held by an item.
+     *
+     * @param item
+     *            the game, as returned by {@link #load(String)} or by this method
+     * @param event
+     *            the event, numbered by this method
+     * @return an item holding the game with the event applied
+     * @throws ConditionalCheckFailedException
+     *             if the game has changed since the item was loaded
+     */
+    ScoreKeeperUserDataItem append(final ScoreKeeperUserDataItem item,
+            final ScoreKeeperGameEventItem event) {
+        long sequence = getSequence(item) + 1;
+        event.setSequence(Long.valueOf(sequence));
+        dynamoDbClient.appendEvent(event);
+        if (sequence <= dynamoDbClient.loadSnapshotSequence(item.getCustomerId())) {
+            // the item predates a compaction that deleted this sequence
+            dynamoDbClient.deleteEvent(event);
+            throw new ConditionalCheckFailedException("Event " + sequence + " of "
+                    + item.getCustomerId() + " is already included in the snapshot");
+        }
+
+        ScoreKeeperGameData gameData = item.toGameData();
+        if (gameData == null) {
+            gameData = ScoreKeeperGameData.newInstance();
+        }
+        event.applyTo(gameData);
+        if (sequence % snapshotEvents == 0) {
+            compactions.put(item.getCustomerId(), Boolean.TRUE);
+        }
+        return newItem(item.getCustomerId(), gameData, item.getVersion(), sequence);
+    }
+
+    /**
+     * Loads the latest events of a game, including events already included in its snapshot.
+     *
+     * @param customerId
+     *            the customer id
+     * @return at most {@link #getHistoryEvents()} events, in descending order of sequence
+     */
+    List<ScoreKeeperGameEventItem> loadHistory(final String customerId) {
+        if (historyEvents == 0) {
+            return new ArrayList<ScoreKeeperGameEventItem>();
+        }
+        return dynamoDbClient.loadLatestEvents(customerId, historyEvents);
+    }
+
+    /**
+     * Compacts the games that reached the number of events between two snapshots.
+     */
+    public void compact() {
+        for (String customerId : new ArrayList<String>(compactions.keySet())) {
+            compactions.remove(customerId);
+            try {
+                compact(customerId);
+            } catch (RuntimeException e) {
+                log.error("Unable to compact the game of {}", customerId, e);
+            }
+        }
+    }
+
+    private void compact(final String customerId) {
+        ScoreKeeperUserDataItem snapshot = loadSnapshot(customerId);
+        ScoreKeeperUserDataItem item = replay(snapshot, false);
+        if (item != snapshot) {
+            try {
+                dynamoDbClient.saveItem(item);
+            } catch (ConditionalCheckFailedException e) {
+                // the game was compacted or saved as a whole by another server
+                log.info("Snapshot of {} changed while compacting, skipping", customerId);
+                return;
+            }
+        }
+
+        long toSequence = getSequence(item) - historyEvents;
+        if (toSequence > 0) {
+            int deleted = dynamoDbClient.deleteEvents(customerId, toSequence);
+            log.info("Compacted {} events of {}", deleted, customerId);
+        }
+    }
+
+    /**
+     * Loads the latest snapshot of a game, or returns an item without game data if there is none.
+     */
+    private ScoreKeeperUserDataItem loadSnapshot(final String customerId) {
+        ScoreKeeperUserDataItem item = new ScoreKeeperUserDataItem();
+        item.setCustomerId(customerId);
+
+        ScoreKeeperUserDataItem loaded = dynamoDbClient.loadItem(item, true);
+        return loaded != null ? loaded : item;
+    }
+
+    /**
+     * Replays the events following a snapshot.
+     *
+     * @return the snapshot itself if no event follows it, and a new item otherwise
+     */
+    private ScoreKeeperUserDataItem replay(final ScoreKeeperUserDataItem snapshot,
+            final boolean scheduleCompaction) {
+        String customerId = snapshot.getCustomerId();
+        List<ScoreKeeperGameEventItem> events =
+                dynamoDbClient.loadEvents(customerId, getSequence(snapshot));
+        if (events.isEmpty()) {
+            return snapshot;
+        }
+
+        ScoreKeeperGameData gameData = snapshot.toGameData();
+        if (gameData == null) {
+            gameData = ScoreKeeperGameData.newInstance();
+        }
+        for (ScoreKeeperGameEventItem event : events) {
+            event.applyTo(gameData);
+        }
+        if (scheduleCompaction && events.size() >= snapshotEvents) {
+            compactions.put(customerId, Boolean.TRUE);
+        }
+        return newItem(customerId, gameData, snapshot.getVersion(),
+                events.get(events.size() - 1).getSequence().longValue());
+    }
+
+    private static ScoreKeeperUserDataItem newItem(final String customerId,
+            final ScoreKeeperGameData gameData, final Long version, final long sequence) {
+        ScoreKeeperUserDataItem item = ScoreKeeperUserDataItem.newInstance(customerId, gameData);
+        item.setVersion(version);
+        item.setSequence(Long.valueOf(sequence));
+        return item;
+    }
+
+    private static long getSequence(final ScoreKeeperUserDataItem item) {
+        return item.getSequence() != null ? item.getSequence().longValue() : 0L;
+    }
+}
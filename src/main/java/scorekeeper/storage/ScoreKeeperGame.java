@@ -1,10 +1,6 @@
 package scorekeeper.storage;
 
-import java.io.Serializable;
-import java.util.Comparator;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 import com.amazon.speech.speechlet.Session;
 
@@ -14,6 +10,13 @@ import com.amazon.speech.speechlet.Session;
 public final class ScoreKeeperGame {
     private Session session;
     private ScoreKeeperGameData gameData;
+    private Long version;
+
+    /**
+     * Scores in descending order, replaced by the methods changing scores, or null until needed.
+     * Usually shared with the cached item the game was read from.
+     */
+    private ScoreKeeperLeaderboard leaderboard;
 
     private ScoreKeeperGame() {
     }
@@ -50,9 +53,25 @@ public final class ScoreKeeperGame {
     }
 
     protected void setGameData(ScoreKeeperGameData gameData) {
+        if (leaderboard != null) {
+            // only the players whose score changed are moved
+            leaderboard = leaderboard.update(this.gameData, gameData);
+        }
         this.gameData = gameData;
     }
 
+    /**
+     * Returns the version of the stored item this game was loaded from, or null if it was never
+     * saved.
+     */
+    protected Long getVersion() {
+        return version;
+    }
+
+    protected void setVersion(Long version) {
+        this.version = version;
+    }
+
     /**
      * Returns true if the game has any players, false otherwise.
      * 
@@ -78,6 +97,12 @@ public final class ScoreKeeperGame {
      *            Name of the player
      */
     public void addPlayer(String playerName) {
+        if (leaderboard != null && !hasPlayer(playerName)) {
+            Long score = gameData.getScores().get(playerName);
+            leaderboard =
+                    leaderboard.withScore(playerName, null, score != null ? score.longValue()
+                            : 0L);
+        }
         gameData.getPlayers().add(playerName);
     }
 
@@ -133,6 +158,11 @@ public final class ScoreKeeperGame {
         }
 
         gameData.getScores().put(playerName, Long.valueOf(currentScore + score));
+        if (leaderboard != null) {
+            leaderboard =
+                    leaderboard.withScore(playerName, Long.valueOf(currentScore), currentScore
+                            + score);
+        }
         return true;
     }
 
@@ -141,50 +171,68 @@ public final class ScoreKeeperGame {
      */
     public void resetScores() {
         for (String playerName : gameData.getPlayers()) {
-            gameData.getScores().put(playerName, Long.valueOf(0L));
+            Long score = gameData.getScores().put(playerName, Long.valueOf(0L));
+            if (leaderboard != null) {
+                leaderboard =
+                        leaderboard.withScore(playerName, score != null ? score : Long.valueOf(0L),
+                                0L);
+            }
         }
     }
 
     /**
-     * Returns a {@link SortedMap} of player names mapped to scores with the map sorted in
-     * decreasing order of scores.
-     * 
-     * @return a {@link SortedMap} of player names mapped to scores with the map sorted in
-     *         decreasing order of scores
+     * Returns a {@link Map} of player names mapped to scores, iterating in decreasing order of
+     * scores.
+     *
+     * @return a {@link Map} of player names mapped to scores, iterating in decreasing order of
+     *         scores
      */
-    public SortedMap<String, Long> getAllScoresInDescndingOrder() {
-		Map<String, Long> scores = gameData.getScores();
-
-		for(String playerName : gameData.getPlayers()) {
-			if(!gameData.getScores().containsKey(playerName)) {
-				scores.put(playerName, Long.valueOf(0L));
-			}
-		}
-
-        SortedMap<String, Long> sortedScores =
-                new TreeMap<String, Long>(new ScoreComparator(scores));
-        sortedScores.putAll(gameData.getScores());
-        return sortedScores;
+    public Map<String, Long> getAllScoresInDescndingOrder() {
+        return getLeaderboard().getTop(Integer.MAX_VALUE);
     }
 
     /**
-     * This comparator takes a map of player name and scores and uses that to sort a collection of
-     * player names in the descending order of their scores.
-     * <p>
-     * Note: this comparator imposes orderings that are inconsistent with equals.
+     * Returns the players with the highest scores.
+     *
+     * @param count
+     *            maximum number of players to return
+     * @return a {@link Map} of player names mapped to scores, iterating in decreasing order of
+     *         scores
      */
-    private static final class ScoreComparator implements Comparator<String>, Serializable {
-        private static final long serialVersionUID = 7849926209990327190L;
-        private final Map<String, Long> baseMap;
+    public Map<String, Long> getTopScores(int count) {
+        return getLeaderboard().getTop(count);
+    }
 
-        private ScoreComparator(Map<String, Long> baseMap) {
-            this.baseMap = baseMap;
+    /**
+     * Returns the rank of a player, 1 being the highest score. Players with the same score are
+     * ranked by name.
+     *
+     * @param playerName
+     *            Name of the player
+     * @return the rank of the player, or 0 if the player has not joined the game
+     */
+    public int getRankForPlayer(String playerName) {
+        if (!hasPlayer(playerName)) {
+            return 0;
         }
+        Long score = gameData.getScores().get(playerName);
+        return getLeaderboard().getRank(playerName, score != null ? score.longValue() : 0L);
+    }
 
-        @Override
-        public int compare(String a, String b) {
-            int longCompare = Long.compare(baseMap.get(b), baseMap.get(a));
-            return longCompare != 0 ? longCompare : a.compareTo(b);
+    /**
+     * Returns the leaderboard of the game, building it on first use.
+     */
+    ScoreKeeperLeaderboard getLeaderboard() {
+        if (leaderboard == null) {
+            leaderboard = ScoreKeeperLeaderboard.newInstance(gameData);
         }
+        return leaderboard;
+    }
+
+    /**
+     * Sets the leaderboard of the game, which must match its current game data.
+     */
+    void setLeaderboard(ScoreKeeperLeaderboard leaderboard) {
+        this.leaderboard = leaderboard;
     }
 }
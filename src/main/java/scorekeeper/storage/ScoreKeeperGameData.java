@@ -29,6 +29,18 @@ public class ScoreKeeperGameData {
         return newInstance;
     }
 
+    /**
+     * Returns a copy of this game data that does not share its player list or score map.
+     *
+     * @return the copy
+     */
+    ScoreKeeperGameData copy() {
+        ScoreKeeperGameData copy = new ScoreKeeperGameData();
+        copy.setPlayers(new ArrayList<String>(players));
+        copy.setScores(new HashMap<String, Long>(scores));
+        return copy;
+    }
+
     public List<String> getPlayers() {
         return players;
     }
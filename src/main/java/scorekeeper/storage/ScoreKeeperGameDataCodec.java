@@ -0,0 +1,242 @@
+package scorekeeper.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compact binary encoding of {@link ScoreKeeperGameData}, used to store large games.
+ * <p>
+ * The encoding starts with a flags byte, followed by the number of players and, for each player,
+ * the length of its UTF-8 name, the name and its score. Numbers are written as variable length
+ * integers, and scores are zigzag encoded so that small negative scores stay small. Each name is
+ * written once, where the JSON document repeats it in the players and the scores. If the encoded
+ * game is larger than {@code scorekeeper.storage.compressBytes} bytes, everything after the flags
+ * byte is deflated.
+ * <p>
+ * Games with at least {@code scorekeeper.storage.binaryPlayers} players are stored in this
+ * encoding. Smaller games keep the native layout, which supports in-place score updates.
+ */
+final class ScoreKeeperGameDataCodec {
+    private static final Logger log = LoggerFactory.getLogger(ScoreKeeperGameDataCodec.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Flag set when the payload is deflated.
+     */
+    private static final int FLAG_DEFLATED = 1;
+
+    /**
+     * Default number of players from which games are stored in this encoding.
+     */
+    private static final int DEFAULT_BINARY_PLAYERS = 25;
+
+    /**
+     * Default encoded size in bytes above which the payload is deflated.
+     */
+    private static final int DEFAULT_COMPRESS_BYTES = 1024;
+
+    private static final int BINARY_PLAYERS = getIntProperty("scorekeeper.storage.binaryPlayers",
+            DEFAULT_BINARY_PLAYERS);
+
+    private static final int COMPRESS_BYTES = getIntProperty("scorekeeper.storage.compressBytes",
+            DEFAULT_COMPRESS_BYTES);
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private ScoreKeeperGameDataCodec() {
+    }
+
+    /**
+     * Returns true if the game is large enough to be stored in this encoding.
+     *
+     * @param gameData
+     *            the game
+     * @return true if the game should be encoded
+     */
+    static boolean shouldEncode(ScoreKeeperGameData gameData) {
+        return gameData.getPlayers().size() >= BINARY_PLAYERS;
+    }
+
+    /**
+     * Encodes a game. Players without a score are encoded with zero points.
+     *
+     * @param gameData
+     *            the game
+     * @return the encoded game
+     */
+    static ByteBuffer encode(ScoreKeeperGameData gameData) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        List<String> players = gameData.getPlayers();
+        writeVarLong(payload, players.size());
+        for (String player : players) {
+            byte[] name = player.getBytes(UTF8);
+            writeVarLong(payload, name.length);
+            payload.write(name, 0, name.length);
+            Long score = gameData.getScores().get(player);
+            long value = score != null ? score.longValue() : 0L;
+            writeVarLong(payload, (value << 1) ^ (value >> 63));
+        }
+
+        byte[] bytes = payload.toByteArray();
+        int flags = 0;
+        if (bytes.length > COMPRESS_BYTES) {
+            bytes = deflate(bytes);
+            flags |= FLAG_DEFLATED;
+        }
+
+        ByteBuffer encoded = ByteBuffer.allocate(1 + bytes.length);
+        encoded.put((byte) flags).put(bytes);
+        encoded.flip();
+        return encoded;
+    }
+
+    /**
+     * Decodes a game.
+     *
+     * @param encoded
+     *            the encoded game; its position is not changed
+     * @return the game
+     * @throws DataFormatException
+     *             if the game is truncated or malformed
+     */
+    static ScoreKeeperGameData decode(ByteBuffer encoded) throws DataFormatException {
+        try {
+            return decodePayload(encoded.duplicate());
+        } catch (BufferUnderflowException e) {
+            throw new DataFormatException("Malformed game data: truncated payload");
+        }
+    }
+
+    /**
+     * Decodes a game, checking every count and length against the bytes left before allocating
+     * anything.
+     */
+    private static ScoreKeeperGameData decodePayload(ByteBuffer buffer)
+            throws DataFormatException {
+        int flags = buffer.get();
+        if ((flags & FLAG_DEFLATED) != 0) {
+            byte[] deflated = new byte[buffer.remaining()];
+            buffer.get(deflated);
+            buffer = ByteBuffer.wrap(inflate(deflated));
+        }
+
+        // every player takes at least a byte for the length of its name and a byte for its score
+        long playerCount = readVarLong(buffer);
+        if (playerCount < 0 || playerCount > buffer.remaining() / 2) {
+            throw new DataFormatException("Malformed game data: invalid player count "
+                    + playerCount);
+        }
+        List<String> players = new ArrayList<String>((int) playerCount);
+        Map<String, Long> scores = new HashMap<String, Long>((int) playerCount * 2);
+        for (int i = 0; i < playerCount; i++) {
+            long nameLength = readVarLong(buffer);
+            if (nameLength < 0 || nameLength > buffer.remaining()) {
+                throw new DataFormatException("Malformed game data: invalid name length "
+                        + nameLength);
+            }
+            byte[] name = new byte[(int) nameLength];
+            buffer.get(name);
+            String player = new String(name, UTF8);
+            long value = readVarLong(buffer);
+            players.add(player);
+            scores.put(player, Long.valueOf((value >>> 1) ^ -(value & 1)));
+        }
+        if (buffer.hasRemaining()) {
+            throw new DataFormatException("Malformed game data: " + buffer.remaining()
+                    + " trailing bytes");
+        }
+
+        ScoreKeeperGameData gameData = new ScoreKeeperGameData();
+        gameData.setPlayers(players);
+        gameData.setScores(scores);
+        return gameData;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) throws DataFormatException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new DataFormatException("Malformed game data: variable length integer too long");
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 2);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new DataFormatException("Malformed game data: truncated payload");
+                }
+                if (inflated == 0 && inflater.needsDictionary()) {
+                    throw new DataFormatException("Malformed game data: unknown dictionary");
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reads an integer setting from the system properties, falling back to the default value if
+     * the property is missing or malformed.
+     */
+    private static int getIntProperty(final String name, final int defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value {} for {}", value, name);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package scorekeeper.storage;
+
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBRangeKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
+
+/**
+ * Model representing an item of the ScoreKeeperGameEvents table in DynamoDB: one change to the
+ * game of a customer. The events of a game are numbered from 1 without gaps, and a game is the
+ * latest snapshot in ScoreKeeperUserData followed by the events after the snapshot's sequence.
+ */
+@DynamoDBTable(tableName = "ScoreKeeperGameEvents")
+public class ScoreKeeperGameEventItem {
+    /**
+     * A player joined the game.
+     */
+    public static final String TYPE_ADD_PLAYER = "AddPlayer";
+
+    /**
+     * Points were added to the score of a player.
+     */
+    public static final String TYPE_ADD_SCORE = "AddScore";
+
+    /**
+     * Points added by an earlier event were taken back. The score of the event is the opposite of
+     * the score of the undone event.
+     */
+    public static final String TYPE_UNDO_SCORE = "UndoScore";
+
+    /**
+     * The scores of all players were reset to zero.
+     */
+    public static final String TYPE_RESET_SCORES = "ResetScores";
+
+    /**
+     * All players were removed from the game.
+     */
+    public static final String TYPE_RESET_PLAYERS = "ResetPlayers";
+
+    private String customerId;
+
+    private Long sequence;
+
+    private String type;
+
+    private String playerName;
+
+    private Long score;
+
+    private Long undoneSequence;
+
+    private Long timestamp;
+
+    /**
+     * Creates an event, numbered when it is appended.
+     *
+     * @param customerId
+     *            the customer id
+     * @param type
+     *            the type of the event
+     * @param playerName
+     *            name of the player, or null for events concerning all players
+     * @param score
+     *            points added, or null for events without points
+     * @return the event
+     */
+    static ScoreKeeperGameEventItem newInstance(String customerId, String type,
+            String playerName, Long score) {
+        ScoreKeeperGameEventItem event = new ScoreKeeperGameEventItem();
+        event.setCustomerId(customerId);
+        event.setType(type);
+        event.setPlayerName(playerName);
+        event.setScore(score);
+        event.setTimestamp(Long.valueOf(System.currentTimeMillis()));
+        return event;
+    }
+
+    /**
+     * Applies this event to a game.
+     *
+     * @param gameData
+     *            the game, modified in place
+     */
+    void applyTo(ScoreKeeperGameData gameData) {
+        if (TYPE_ADD_PLAYER.equals(type)) {
+            gameData.getPlayers().add(playerName);
+        } else if (TYPE_ADD_SCORE.equals(type) || TYPE_UNDO_SCORE.equals(type)) {
+            if (gameData.getPlayers().contains(playerName)) {
+                Long currentScore = gameData.getScores().get(playerName);
+                gameData.getScores().put(playerName, Long.valueOf(
+                        (currentScore != null ? currentScore.longValue() : 0L)
+                                + score.longValue()));
+            }
+        } else if (TYPE_RESET_SCORES.equals(type)) {
+            for (String player : gameData.getPlayers()) {
+                gameData.getScores().put(player, Long.valueOf(0L));
+            }
+        } else if (TYPE_RESET_PLAYERS.equals(type)) {
+            gameData.getPlayers().clear();
+            gameData.getScores().clear();
+        } else {
+            throw new IllegalStateException("Unknown event type " + type);
+        }
+    }
+
+    @DynamoDBHashKey(attributeName = "CustomerId")
+    public String getCustomerId() {
+        return customerId;
+    }
+
+    public void setCustomerId(String customerId) {
+        this.customerId = customerId;
+    }
+
+    @DynamoDBRangeKey(attributeName = "Sequence")
+    public Long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(Long sequence) {
+        this.sequence = sequence;
+    }
+
+    @DynamoDBAttribute(attributeName = "Type")
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    @DynamoDBAttribute(attributeName = "Player")
+    public String getPlayerName() {
+        return playerName;
+    }
+
+    public void setPlayerName(String playerName) {
+        this.playerName = playerName;
+    }
+
+    @DynamoDBAttribute(attributeName = "Score")
+    public Long getScore() {
+        return score;
+    }
+
+    public void setScore(Long score) {
+        this.score = score;
+    }
+
+    /**
+     * Returns the sequence of the event undone by an undo event, or null for other events.
+     */
+    @DynamoDBAttribute(attributeName = "Undone")
+    public Long getUndoneSequence() {
+        return undoneSequence;
+    }
+
+    public void setUndoneSequence(Long undoneSequence) {
+        this.undoneSequence = undoneSequence;
+    }
+
+    /**
+     * Returns the time the event was created, in milliseconds since the epoch.
+     */
+    @DynamoDBAttribute(attributeName = "Timestamp")
+    public Long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(Long timestamp) {
+        this.timestamp = timestamp;
+    }
+}
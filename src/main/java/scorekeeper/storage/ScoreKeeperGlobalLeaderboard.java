@@ -0,0 +1,782 @@
+package scorekeeper.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.GetItemRequest;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemRequest;
+import com.amazonaws.services.dynamodbv2.model.UpdateItemResult;
+
+/**
+ * Ranks households across all customers by the total number of points they have scored.
+ * <p>
+ * The total of each household is kept in the {@value #TABLE_NAME} table, keyed by customer id, so
+ * the writes are spread over as many partition keys as there are households. Households are also
+ * counted in the {@value #SHARDS_TABLE_NAME} table, whose items are the
+ * {@code scorekeeper.globalLeaderboard.shards} shards of the leaderboard. Each household belongs
+ * to the shard derived from its customer id, and each shard item holds one counter per bucket of
+ * totals, the number of its households in the bucket, and its best households. The shard count
+ * must not change once totals are stored.
+ * <p>
+ * Points are added to a local buffer, and every {@code scorekeeper.globalLeaderboard.flushMillis}
+ * milliseconds the buffered points of each household are added to its total. The households
+ * moving to another bucket are counted with a single update per shard, and the best households of
+ * a shard are only rewritten when a household may join them or already is one of them.
+ * <p>
+ * Adding points is not idempotent, so each write of a total stores a token on the item and is
+ * rejected if the token is already there. A write that failed is retried with the same token, so
+ * if it was applied and only its response was lost, the retry reads the totals back instead of
+ * adding the points again. Should another server change the total in between, the household is
+ * not moved to its new bucket.
+ * <p>
+ * Every {@code scorekeeper.globalLeaderboard.refreshSeconds} seconds, on a thread of its own, the
+ * shard items are read and merged into an immutable snapshot. A refresh reads a bounded number of
+ * counters per shard, whatever the number of households. The top households are served from the
+ * snapshot with their rank. Other ranks are estimated from the counters, assuming the totals of a
+ * bucket are evenly spread, and are approximate.
+ */
+public class ScoreKeeperGlobalLeaderboard {
+    private static final Logger log = LoggerFactory.getLogger(ScoreKeeperGlobalLeaderboard.class);
+
+    /**
+     * Name of the table holding the totals.
+     */
+    public static final String TABLE_NAME = "ScoreKeeperGlobalScores";
+
+    /**
+     * Name of the table holding the counters and best households of each shard.
+     */
+    public static final String SHARDS_TABLE_NAME = "ScoreKeeperGlobalShards";
+
+    /**
+     * Number of best households kept by each shard and in the snapshot.
+     */
+    public static final int MAX_TOP_SCORES = 10;
+
+    /**
+     * Totals from 2^n to 2^(n+1) are split into 2^SUB_BUCKET_BITS buckets, so a bucket spans at
+     * most a quarter of the totals it starts with.
+     */
+    private static final int SUB_BUCKET_BITS = 2;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Number of buckets: one per total below SUB_BUCKETS, zero and negative totals sharing the
+     * first one, then SUB_BUCKETS for each power of two up to Long.MAX_VALUE.
+     */
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /**
+     * Prefix of the names of the bucket counters in the shard items.
+     */
+    private static final String BUCKET_PREFIX = "B";
+
+    /**
+     * Number of times the best households of a shard are rewritten before giving up, when other
+     * servers keep changing them.
+     */
+    private static final int MAX_TOP_ATTEMPTS = 3;
+
+    private static final int DEFAULT_SHARDS = 32;
+
+    private static final long DEFAULT_FLUSH_MILLIS = 1000;
+
+    private static final long DEFAULT_REFRESH_SECONDS = 300;
+
+    private final AmazonDynamoDBClient dynamoDBClient;
+
+    private final int shards;
+
+    /**
+     * Points not yet added to the table, by customer id.
+     */
+    private final ConcurrentMap<String, Long> pending = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Writes of totals that failed and may have been applied, by customer id. They are retried
+     * with the same token before any points buffered since. Only accessed while holding the flush
+     * lock.
+     */
+    private final Map<String, TotalUpdate> unconfirmed = new HashMap<String, TotalUpdate>();
+
+    /**
+     * Changes not yet added to the bucket counters, by shard and bucket. Only accessed while
+     * holding the flush lock.
+     */
+    private final Map<Integer, Map<Integer, Long>> pendingCounts =
+            new HashMap<Integer, Map<Integer, Long>>();
+
+    /**
+     * Serializes flushes, so buffered points are never added twice.
+     */
+    private final Object flushLock = new Object();
+
+    /**
+     * Latest merged snapshot, or null until the first refresh completes.
+     */
+    private volatile Snapshot snapshot;
+
+    /**
+     * Creates a leaderboard, configured with system properties, and starts flushing and refreshing
+     * it in the background.
+     *
+     * @param dynamoDBClient
+     *            client used to read and write the totals
+     */
+    public ScoreKeeperGlobalLeaderboard(final AmazonDynamoDBClient dynamoDBClient) {
+        this.dynamoDBClient = dynamoDBClient;
+        this.shards =
+                (int) Math.max(1, getLongProperty("scorekeeper.globalLeaderboard.shards",
+                        DEFAULT_SHARDS));
+        long flushMillis =
+                getLongProperty("scorekeeper.globalLeaderboard.flushMillis", DEFAULT_FLUSH_MILLIS);
+        long refreshSeconds =
+                getLongProperty("scorekeeper.globalLeaderboard.refreshSeconds",
+                        DEFAULT_REFRESH_SECONDS);
+
+        // a slow refresh must not hold back the buffered points
+        newExecutor("scorekeeper-global-leaderboard-flush").scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        newExecutor("scorekeeper-global-leaderboard-refresh").scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        refresh();
+                    }
+                }, 0, refreshSeconds, TimeUnit.SECONDS);
+
+        Runtime.getRuntime().addShutdownHook(
+                new Thread("scorekeeper-global-leaderboard-shutdown") {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                });
+    }
+
+    /**
+     * Adds points to the total of a household. The points reach the table with the next flush.
+     *
+     * @param customerId
+     *            the customer id
+     * @param score
+     *            points to be added, possibly negative
+     */
+    public void addScore(final String customerId, final long score) {
+        if (score == 0) {
+            return;
+        }
+        while (true) {
+            Long points = pending.get(customerId);
+            if (points == null) {
+                if (pending.putIfAbsent(customerId, Long.valueOf(score)) == null) {
+                    return;
+                }
+            } else if (pending.replace(customerId, points,
+                    Long.valueOf(points.longValue() + score))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns true once a snapshot is available.
+     *
+     * @return true if the top households and ranks can be served
+     */
+    public boolean isAvailable() {
+        return snapshot != null;
+    }
+
+    /**
+     * Returns the households with the highest totals in the latest snapshot.
+     *
+     * @param count
+     *            maximum number of households to return, at most {@value #MAX_TOP_SCORES}
+     * @return customer ids mapped to totals, iterating in descending order of totals; empty if no
+     *         snapshot is available
+     */
+    public LinkedHashMap<String, Long> getTopScores(final int count) {
+        LinkedHashMap<String, Long> top = new LinkedHashMap<String, Long>();
+        Snapshot current = snapshot;
+        if (current == null) {
+            return top;
+        }
+        for (Map.Entry<String, Long> entry : current.topScores.entrySet()) {
+            if (top.size() >= count) {
+                break;
+            }
+            top.put(entry.getKey(), entry.getValue());
+        }
+        return top;
+    }
+
+    /**
+     * Returns the number of households in the latest snapshot.
+     *
+     * @return the number of households, or 0 if no snapshot is available
+     */
+    public int getNumberOfHouseholds() {
+        Snapshot current = snapshot;
+        return current != null ? (int) Math.min(current.households, Integer.MAX_VALUE) : 0;
+    }
+
+    /**
+     * Returns the stored total of a household. Points buffered since the last flush are not
+     * included.
+     *
+     * @param customerId
+     *            the customer id
+     * @return the total, or null if the household has never scored
+     */
+    public Long getTotal(final String customerId) {
+        GetItemResult result =
+                dynamoDBClient.getItem(new GetItemRequest().withTableName(TABLE_NAME)
+                        .withKey(getKey(customerId)).withProjectionExpression("Total"));
+        if (result.getItem() == null || result.getItem().get("Total") == null) {
+            return null;
+        }
+        return Long.valueOf(result.getItem().get("Total").getN());
+    }
+
+    /**
+     * Estimates the rank of a total in the latest snapshot, 1 being the highest total. The total
+     * is placed among the households of its bucket as if their totals were evenly spread over the
+     * bucket, so the rank is approximate. Households among the {@link #getTopScores(int) top
+     * households} should be ranked by their position there instead.
+     *
+     * @param total
+     *            the total, usually read with {@link #getTotal(String)}
+     * @return the estimated rank, or 0 if no snapshot is available
+     */
+    public int getApproximateRank(final long total) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            return 0;
+        }
+        int bucket = getBucket(total);
+        long rank = current.householdsAbove[bucket] + 1;
+        long inBucket = current.counts[bucket];
+        long lower = getLowerBound(bucket);
+        long upper = getUpperBound(bucket);
+        if (inBucket > 1 && upper > lower) {
+            rank += (long) ((double) (upper - total) / (upper - lower) * (inBucket - 1));
+        }
+        return (int) Math.min(rank, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Adds the buffered points to the table, and updates the shards of the households. Points and
+     * counters that could not be written stay buffered and are retried on the next flush.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            Snapshot current = snapshot;
+            Map<Integer, Map<String, Long>> topCandidates =
+                    new HashMap<Integer, Map<String, Long>>();
+            Set<String> customerIds = new LinkedHashSet<String>(unconfirmed.keySet());
+            customerIds.addAll(pending.keySet());
+            for (String customerId : customerIds) {
+                TotalUpdate update = unconfirmed.remove(customerId);
+                if (update == null) {
+                    // points added from now on are buffered again, and written by the next flush
+                    Long points = pending.remove(customerId);
+                    long score = points != null ? points.longValue() : 0;
+                    if (score == 0) {
+                        continue;
+                    }
+                    update = new TotalUpdate(UUID.randomUUID().toString(), score);
+                }
+
+                Long oldTotal;
+                long newTotal;
+                try {
+                    Long[] totals = addToTotal(customerId, update);
+                    if (totals == null) {
+                        continue;
+                    }
+                    oldTotal = totals[0];
+                    newTotal = totals[1].longValue();
+                } catch (RuntimeException e) {
+                    log.warn("Unable to add {} points for a household, will retry", update.score,
+                            e);
+                    unconfirmed.put(customerId, update);
+                    continue;
+                }
+
+                int shard = getShard(customerId);
+                if (oldTotal != null) {
+                    addToCount(shard, getBucket(oldTotal.longValue()), -1);
+                }
+                addToCount(shard, getBucket(newTotal), 1);
+
+                if (current == null || current.mayBeTop(shard, customerId, newTotal)) {
+                    Map<String, Long> candidates = topCandidates.get(Integer.valueOf(shard));
+                    if (candidates == null) {
+                        candidates = new HashMap<String, Long>();
+                        topCandidates.put(Integer.valueOf(shard), candidates);
+                    }
+                    candidates.put(customerId, Long.valueOf(newTotal));
+                }
+            }
+
+            writeCounts();
+            for (Map.Entry<Integer, Map<String, Long>> entry : topCandidates.entrySet()) {
+                try {
+                    updateTop(entry.getKey().intValue(), entry.getValue());
+                } catch (RuntimeException e) {
+                    // the households are considered again the next time they score
+                    log.warn("Unable to update the best households of shard {}", entry.getKey(),
+                            e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds points to the total of a household. The write stores its token as the last flush of the
+     * household, and as the first one if the household had none. If the token is already stored,
+     * an earlier attempt of the write was applied, and the totals are read back instead.
+     *
+     * @return the total before the points were added, or null if the household had none, and the
+     *         total after; null if the points were added but the total changed since
+     */
+    private Long[] addToTotal(final String customerId, final TotalUpdate update) {
+        Map<String, String> names = new HashMap<String, String>();
+        names.put("#total", "Total");
+        names.put("#last", "LastFlush");
+        names.put("#first", "FirstFlush");
+        Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+        values.put(":score", new AttributeValue().withN(Long.toString(update.score)));
+        values.put(":token", new AttributeValue(update.token));
+        try {
+            UpdateItemResult result =
+                    dynamoDBClient.updateItem(new UpdateItemRequest()
+                            .withTableName(TABLE_NAME)
+                            .withKey(getKey(customerId))
+                            .withUpdateExpression("SET #last = :token, "
+                                    + "#first = if_not_exists(#first, :token) ADD #total :score")
+                            .withConditionExpression(
+                                    "attribute_not_exists(#last) OR #last <> :token")
+                            .withExpressionAttributeNames(names)
+                            .withExpressionAttributeValues(values)
+                            .withReturnValues(ReturnValue.UPDATED_OLD));
+            Map<String, AttributeValue> old = result.getAttributes();
+            Long oldTotal =
+                    old != null && old.get("Total") != null ? Long.valueOf(old.get("Total")
+                            .getN()) : null;
+            return new Long[] {
+                    oldTotal, Long.valueOf((oldTotal != null ? oldTotal.longValue() : 0L)
+                            + update.score) };
+        } catch (ConditionalCheckFailedException e) {
+            log.info("Points for a household were added by an earlier attempt, reading them back");
+        }
+
+        Map<String, AttributeValue> item =
+                dynamoDBClient.getItem(new GetItemRequest().withTableName(TABLE_NAME)
+                        .withKey(getKey(customerId)).withConsistentRead(Boolean.TRUE)).getItem();
+        if (item == null || item.get("LastFlush") == null
+                || !update.token.equals(item.get("LastFlush").getS())) {
+            log.warn("Total of a household changed since its points were added, not moving it to "
+                    + "its new bucket");
+            return null;
+        }
+        long newTotal = Long.parseLong(item.get("Total").getN());
+        boolean created =
+                item.get("FirstFlush") != null && update.token.equals(item.get("FirstFlush").getS());
+        return new Long[] {
+                created ? null : Long.valueOf(newTotal - update.score), Long.valueOf(newTotal) };
+    }
+
+    /**
+     * Buffers a change of the counter of a bucket.
+     */
+    private void addToCount(final int shard, final int bucket, final long change) {
+        Map<Integer, Long> counts = pendingCounts.get(Integer.valueOf(shard));
+        if (counts == null) {
+            counts = new HashMap<Integer, Long>();
+            pendingCounts.put(Integer.valueOf(shard), counts);
+        }
+        Long count = counts.get(Integer.valueOf(bucket));
+        counts.put(Integer.valueOf(bucket),
+                Long.valueOf((count != null ? count.longValue() : 0L) + change));
+    }
+
+    /**
+     * Adds the buffered counter changes to the shard items, with one update per shard.
+     */
+    private void writeCounts() {
+        Iterator<Map.Entry<Integer, Map<Integer, Long>>> iterator =
+                pendingCounts.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Map<Integer, Long>> entry = iterator.next();
+            StringBuilder expression = new StringBuilder();
+            Map<String, String> names = new HashMap<String, String>();
+            Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+            for (Map.Entry<Integer, Long> count : entry.getValue().entrySet()) {
+                if (count.getValue().longValue() == 0) {
+                    continue;
+                }
+                int bucket = count.getKey().intValue();
+                expression.append(expression.length() == 0 ? "ADD " : ", ")
+                        .append("#b").append(bucket).append(" :b").append(bucket);
+                names.put("#b" + bucket, BUCKET_PREFIX + bucket);
+                values.put(":b" + bucket, new AttributeValue().withN(count.getValue().toString()));
+            }
+            if (expression.length() == 0) {
+                iterator.remove();
+                continue;
+            }
+
+            try {
+                dynamoDBClient.updateItem(new UpdateItemRequest()
+                        .withTableName(SHARDS_TABLE_NAME)
+                        .withKey(getShardKey(entry.getKey().intValue()))
+                        .withUpdateExpression(expression.toString())
+                        .withExpressionAttributeNames(names)
+                        .withExpressionAttributeValues(values));
+                iterator.remove();
+            } catch (RuntimeException e) {
+                log.warn("Unable to update the counters of shard {}, will retry", entry.getKey(),
+                        e);
+            }
+        }
+    }
+
+    /**
+     * Merges households into the best households of a shard. The shard item is versioned, so
+     * servers updating the same shard do not overwrite each other.
+     *
+     * @param candidates
+     *            the new totals of households of the shard that may be among the best ones
+     */
+    private void updateTop(final int shard, final Map<String, Long> candidates) {
+        for (int attempt = 1; attempt <= MAX_TOP_ATTEMPTS; attempt++) {
+            Map<String, String> names = new HashMap<String, String>();
+            names.put("#top", "Top");
+            names.put("#version", "Version");
+            GetItemResult result =
+                    dynamoDBClient.getItem(new GetItemRequest()
+                            .withTableName(SHARDS_TABLE_NAME)
+                            .withKey(getShardKey(shard))
+                            .withProjectionExpression("#top, #version")
+                            .withExpressionAttributeNames(names)
+                            .withConsistentRead(Boolean.TRUE));
+            Map<String, AttributeValue> item = result.getItem();
+            Map<String, Long> top = getTop(item);
+            AttributeValue version = item != null ? item.get("Version") : null;
+
+            Map<String, Long> merged = new HashMap<String, Long>(top);
+            merged.putAll(candidates);
+            merged = getBest(merged.entrySet());
+            if (merged.equals(top)) {
+                return;
+            }
+
+            Map<String, AttributeValue> topValue = new HashMap<String, AttributeValue>();
+            for (Map.Entry<String, Long> entry : merged.entrySet()) {
+                topValue.put(entry.getKey(),
+                        new AttributeValue().withN(entry.getValue().toString()));
+            }
+            Map<String, AttributeValue> values = new HashMap<String, AttributeValue>();
+            values.put(":top", new AttributeValue().withM(topValue));
+            values.put(":next", new AttributeValue().withN(Long.toString(version != null ? Long
+                    .parseLong(version.getN()) + 1 : 1L)));
+            UpdateItemRequest request =
+                    new UpdateItemRequest()
+                            .withTableName(SHARDS_TABLE_NAME)
+                            .withKey(getShardKey(shard))
+                            .withUpdateExpression("SET #top = :top, #version = :next")
+                            .withExpressionAttributeNames(names);
+            if (version != null) {
+                values.put(":version", version);
+                request.setConditionExpression("#version = :version");
+            } else {
+                request.setConditionExpression("attribute_not_exists(#version)");
+            }
+            request.setExpressionAttributeValues(values);
+
+            try {
+                dynamoDBClient.updateItem(request);
+                return;
+            } catch (ConditionalCheckFailedException e) {
+                log.info("Best households of shard {} changed, merging again", shard);
+            }
+        }
+        log.warn("Best households of shard {} kept changing, skipping", shard);
+    }
+
+    /**
+     * Reads every shard item and replaces the snapshot with their merged counters and best
+     * households.
+     */
+    private void refresh() {
+        long start = System.currentTimeMillis();
+        try {
+            long[] counts = new long[BUCKETS];
+            long[] topThresholds = new long[shards];
+            Set<String> topMembers = new HashSet<String>();
+            List<Map.Entry<String, Long>> best = new ArrayList<Map.Entry<String, Long>>();
+
+            for (int shard = 0; shard < shards; shard++) {
+                Map<String, AttributeValue> item =
+                        dynamoDBClient.getItem(new GetItemRequest()
+                                .withTableName(SHARDS_TABLE_NAME)
+                                .withKey(getShardKey(shard))).getItem();
+                Map<String, Long> top = getTop(item);
+                topThresholds[shard] =
+                        top.size() < MAX_TOP_SCORES ? Long.MIN_VALUE : Collections.min(
+                                top.values()).longValue();
+                topMembers.addAll(top.keySet());
+                best.addAll(top.entrySet());
+                if (item == null) {
+                    continue;
+                }
+
+                for (Map.Entry<String, AttributeValue> attribute : item.entrySet()) {
+                    String name = attribute.getKey();
+                    if (name.startsWith(BUCKET_PREFIX)) {
+                        int bucket = Integer.parseInt(name.substring(BUCKET_PREFIX.length()));
+                        counts[bucket] += Long.parseLong(attribute.getValue().getN());
+                    }
+                }
+            }
+
+            Snapshot merged = new Snapshot(getBest(best), counts, topThresholds, topMembers);
+            snapshot = merged;
+            log.info("Merged global leaderboard of {} households from {} shards in {} ms",
+                    merged.households, shards, System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            // keeps serving the previous snapshot
+            log.error("Unable to refresh global leaderboard", e);
+        }
+    }
+
+    /**
+     * Returns the best households stored in a shard item.
+     */
+    private static Map<String, Long> getTop(final Map<String, AttributeValue> item) {
+        Map<String, Long> top = new HashMap<String, Long>();
+        if (item != null && item.get("Top") != null) {
+            for (Map.Entry<String, AttributeValue> entry : item.get("Top").getM().entrySet()) {
+                top.put(entry.getKey(), Long.valueOf(entry.getValue().getN()));
+            }
+        }
+        return top;
+    }
+
+    /**
+     * Returns the {@value #MAX_TOP_SCORES} households with the highest totals, in descending order
+     * of totals.
+     */
+    private static LinkedHashMap<String, Long> getBest(
+            final Collection<Map.Entry<String, Long>> households) {
+        List<Map.Entry<String, Long>> sorted = new ArrayList<Map.Entry<String, Long>>(households);
+        Collections.sort(sorted, Collections.reverseOrder(ASCENDING_TOTALS));
+        LinkedHashMap<String, Long> best = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : sorted.subList(0,
+                Math.min(MAX_TOP_SCORES, sorted.size()))) {
+            best.put(entry.getKey(), entry.getValue());
+        }
+        return best;
+    }
+
+    /**
+     * Returns the bucket of a total. Totals below SUB_BUCKETS have a bucket of their own, and
+     * larger totals share a bucket with the totals having the same highest SUB_BUCKET_BITS + 1
+     * bits.
+     */
+    private static int getBucket(final long total) {
+        if (total <= 0) {
+            return 0;
+        }
+        if (total < SUB_BUCKETS) {
+            return (int) total;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(total);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS
+                + (int) ((total >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * Returns the lowest positive total of a bucket.
+     */
+    private static long getLowerBound(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * Returns the highest total of a bucket.
+     */
+    private static long getUpperBound(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        // wraps around to Long.MAX_VALUE for the last bucket
+        return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << shift) - 1;
+    }
+
+    private static Map<String, AttributeValue> getKey(final String customerId) {
+        Map<String, AttributeValue> key = new HashMap<String, AttributeValue>();
+        key.put("CustomerId", new AttributeValue(customerId));
+        return key;
+    }
+
+    private static Map<String, AttributeValue> getShardKey(final int shard) {
+        Map<String, AttributeValue> key = new HashMap<String, AttributeValue>();
+        key.put("Shard", new AttributeValue().withN(Integer.toString(shard)));
+        return key;
+    }
+
+    private int getShard(final String customerId) {
+        return (customerId.hashCode() & Integer.MAX_VALUE) % shards;
+    }
+
+    private static ScheduledExecutorService newExecutor(final String name) {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Orders households by ascending total, then by descending customer id, so that the reverse
+     * order ranks equal totals by customer id.
+     */
+    private static final Comparator<Map.Entry<String, Long>> ASCENDING_TOTALS =
+            new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> first, Map.Entry<String, Long> second) {
+                    int comparison = first.getValue().compareTo(second.getValue());
+                    return comparison != 0 ? comparison : second.getKey().compareTo(
+                            first.getKey());
+                }
+            };
+
+    /**
+     * Reads a numeric setting from the system properties, falling back to the default value if
+     * the property is missing or malformed.
+     */
+    private static long getLongProperty(final String name, final long defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value {} for {}", value, name);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Points to be added to the total of a household, and the token identifying the write.
+     */
+    private static final class TotalUpdate {
+        private final String token;
+
+        private final long score;
+
+        private TotalUpdate(String token, long score) {
+            this.token = token;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Merged shards at the time of a refresh.
+     */
+    private static final class Snapshot {
+        /**
+         * Best households by customer id, in descending order of totals.
+         */
+        private final LinkedHashMap<String, Long> topScores;
+
+        /**
+         * Number of households in each bucket.
+         */
+        private final long[] counts;
+
+        /**
+         * Number of households in the buckets above each bucket.
+         */
+        private final long[] householdsAbove;
+
+        private final long households;
+
+        /**
+         * Lowest total among the best households of each shard, or Long.MIN_VALUE if a shard has
+         * fewer than {@value ScoreKeeperGlobalLeaderboard#MAX_TOP_SCORES} of them.
+         */
+        private final long[] topThresholds;
+
+        /**
+         * Customer ids of the best households of all shards.
+         */
+        private final Set<String> topMembers;
+
+        private Snapshot(LinkedHashMap<String, Long> topScores, long[] counts,
+                long[] topThresholds, Set<String> topMembers) {
+            this.topScores = topScores;
+            this.counts = counts;
+            this.topThresholds = topThresholds;
+            this.householdsAbove = new long[counts.length];
+            long above = 0;
+            for (int bucket = counts.length - 1; bucket >= 0; bucket--) {
+                householdsAbove[bucket] = above;
+                above += Math.max(0, counts[bucket]);
+            }
+            this.households = above;
+            this.topMembers = topMembers;
+        }
+
+        /**
+         * Returns true if a household of a shard may be among the best ones of the shard with a
+         * new total, or was among them.
+         */
+        private boolean mayBeTop(int shard, String customerId, long total) {
+            return total >= topThresholds[shard] || topMembers.contains(customerId);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package scorekeeper.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Players of a game ordered by descending score, then by name.
+ * <p>
+ * The order is held in a treap whose nodes know the size of their subtree, so changing a score,
+ * finding the rank of a player and reading the top N players take logarithmic time in the number
+ * of players, plus N for the top N. Nothing is re-sorted when scores are read.
+ * <p>
+ * Instances are immutable: changing a score returns a new leaderboard sharing all but a
+ * logarithmic number of nodes with the previous one. A leaderboard can therefore be kept with a
+ * cached game and handed to every request reading it, each request deriving its own leaderboard
+ * as it changes the game.
+ */
+final class ScoreKeeperLeaderboard {
+    private static final ScoreKeeperLeaderboard EMPTY = new ScoreKeeperLeaderboard(null);
+
+    private final Node root;
+
+    private ScoreKeeperLeaderboard(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Creates a leaderboard of the players of a game. Players without a score have zero points.
+     *
+     * @param gameData
+     *            the game
+     * @return the leaderboard
+     */
+    static ScoreKeeperLeaderboard newInstance(ScoreKeeperGameData gameData) {
+        List<Map.Entry<String, Long>> players =
+                new ArrayList<Map.Entry<String, Long>>(getScores(gameData).entrySet());
+        Collections.sort(players, ORDER);
+        return players.isEmpty() ? EMPTY : new ScoreKeeperLeaderboard(build(players, 0,
+                players.size()));
+    }
+
+    /**
+     * Returns a leaderboard where the score of a player is changed, or the player is added.
+     *
+     * @param playerName
+     *            name of the player
+     * @param oldScore
+     *            the score of the player on this leaderboard, or null if the player is not on it
+     * @param score
+     *            the new score
+     * @return the new leaderboard
+     */
+    ScoreKeeperLeaderboard withScore(String playerName, Long oldScore, long score) {
+        if (oldScore != null && oldScore.longValue() == score) {
+            return this;
+        }
+        Node node = root;
+        if (oldScore != null) {
+            node = remove(node, playerName, oldScore.longValue());
+        }
+        return new ScoreKeeperLeaderboard(insert(node, playerName, score));
+    }
+
+    /**
+     * Returns a leaderboard of another version of the game, changing only the players whose score
+     * differs. Falls back to building a new leaderboard when most players changed.
+     *
+     * @param oldGameData
+     *            the game this leaderboard was built from
+     * @param newGameData
+     *            the new version of the game
+     * @return the leaderboard of the new version
+     */
+    ScoreKeeperLeaderboard update(ScoreKeeperGameData oldGameData,
+            ScoreKeeperGameData newGameData) {
+        Map<String, Long> oldScores = getScores(oldGameData);
+        Map<String, Long> newScores = getScores(newGameData);
+        List<String> changed = new ArrayList<String>();
+        for (Map.Entry<String, Long> entry : oldScores.entrySet()) {
+            if (!entry.getValue().equals(newScores.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String playerName : newScores.keySet()) {
+            if (!oldScores.containsKey(playerName)) {
+                changed.add(playerName);
+            }
+        }
+        if (changed.isEmpty()) {
+            return this;
+        }
+        if (changed.size() > newScores.size() / 2) {
+            return newInstance(newGameData);
+        }
+
+        Node node = root;
+        for (String playerName : changed) {
+            Long oldScore = oldScores.get(playerName);
+            if (oldScore != null) {
+                node = remove(node, playerName, oldScore.longValue());
+            }
+            Long newScore = newScores.get(playerName);
+            if (newScore != null) {
+                node = insert(node, playerName, newScore.longValue());
+            }
+        }
+        return new ScoreKeeperLeaderboard(node);
+    }
+
+    /**
+     * Returns the number of players.
+     *
+     * @return the number of players
+     */
+    int size() {
+        return size(root);
+    }
+
+    /**
+     * Returns the rank of a player, 1 being the highest score. Players with the same score are
+     * ranked by name.
+     *
+     * @param playerName
+     *            name of the player
+     * @param score
+     *            the score of the player on this leaderboard
+     * @return the rank
+     */
+    int getRank(String playerName, long score) {
+        int rank = 1;
+        Node node = root;
+        while (node != null) {
+            int comparison = compare(playerName, score, node);
+            if (comparison < 0) {
+                node = node.left;
+            } else {
+                rank += size(node.left);
+                if (comparison == 0) {
+                    break;
+                }
+                rank++;
+                node = node.right;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Returns the players with the highest scores.
+     *
+     * @param count
+     *            maximum number of players to return
+     * @return player names mapped to scores, iterating in descending order of scores
+     */
+    LinkedHashMap<String, Long> getTop(int count) {
+        LinkedHashMap<String, Long> top = new LinkedHashMap<String, Long>();
+        Deque<Node> path = new ArrayDeque<Node>();
+        Node node = root;
+        while (top.size() < count && (node != null || !path.isEmpty())) {
+            if (node != null) {
+                path.push(node);
+                node = node.left;
+            } else {
+                node = path.pop();
+                top.put(node.playerName, Long.valueOf(node.score));
+                node = node.right;
+            }
+        }
+        return top;
+    }
+
+    /**
+     * Returns the score of each player of a game, zero for players without a score.
+     */
+    private static Map<String, Long> getScores(ScoreKeeperGameData gameData) {
+        Map<String, Long> scores = new HashMap<String, Long>();
+        for (String playerName : gameData.getPlayers()) {
+            Long score = gameData.getScores().get(playerName);
+            scores.put(playerName, score != null ? score : Long.valueOf(0L));
+        }
+        return scores;
+    }
+
+    /**
+     * Orders by descending score, then by name.
+     */
+    private static int compare(String playerName, long score, Node node) {
+        if (score != node.score) {
+            return score > node.score ? -1 : 1;
+        }
+        return playerName.compareTo(node.playerName);
+    }
+
+    /**
+     * Derives the priority of a player from its name, so that the shape of the treap does not
+     * depend on the order of the changes.
+     */
+    private static int getPriority(String playerName) {
+        int hash = playerName.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int size(Node node) {
+        return node != null ? node.size : 0;
+    }
+
+    /**
+     * Builds the treap of players sorted in leaderboard order, rooted at the player with the
+     * highest priority.
+     */
+    private static Node build(List<Map.Entry<String, Long>> players, int from, int to) {
+        if (from == to) {
+            return null;
+        }
+        int top = from;
+        for (int i = from + 1; i < to; i++) {
+            if (getPriority(players.get(i).getKey()) > getPriority(players.get(top).getKey())) {
+                top = i;
+            }
+        }
+        Map.Entry<String, Long> player = players.get(top);
+        return new Node(player.getKey(), player.getValue().longValue(), build(players, from,
+                top), build(players, top + 1, to));
+    }
+
+    private static Node insert(Node node, String playerName, long score) {
+        if (node == null || getPriority(playerName) > node.priority) {
+            Node[] parts = split(node, playerName, score);
+            return new Node(playerName, score, parts[0], parts[1]);
+        }
+        if (compare(playerName, score, node) < 0) {
+            return node.withChildren(insert(node.left, playerName, score), node.right);
+        }
+        return node.withChildren(node.left, insert(node.right, playerName, score));
+    }
+
+    private static Node remove(Node node, String playerName, long score) {
+        if (node == null) {
+            return null;
+        }
+        int comparison = compare(playerName, score, node);
+        if (comparison == 0) {
+            return merge(node.left, node.right);
+        }
+        if (comparison < 0) {
+            return node.withChildren(remove(node.left, playerName, score), node.right);
+        }
+        return node.withChildren(node.left, remove(node.right, playerName, score));
+    }
+
+    /**
+     * Splits a treap into the nodes ordered before a player and the other nodes.
+     */
+    private static Node[] split(Node node, String playerName, long score) {
+        if (node == null) {
+            return new Node[2];
+        }
+        if (compare(playerName, score, node) <= 0) {
+            Node[] parts = split(node.left, playerName, score);
+            parts[1] = node.withChildren(parts[1], node.right);
+            return parts;
+        }
+        Node[] parts = split(node.right, playerName, score);
+        parts[0] = node.withChildren(node.left, parts[0]);
+        return parts;
+    }
+
+    /**
+     * Merges two treaps, all nodes of the first one ordered before those of the second one.
+     */
+    private static Node merge(Node first, Node second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        if (first.priority > second.priority) {
+            return first.withChildren(first.left, merge(first.right, second));
+        }
+        return second.withChildren(merge(first, second.left), second.right);
+    }
+
+    /**
+     * Orders players by descending score, then by name.
+     */
+    private static final Comparator<Map.Entry<String, Long>> ORDER =
+            new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> first, Map.Entry<String, Long> second) {
+                    int comparison = second.getValue().compareTo(first.getValue());
+                    return comparison != 0 ? comparison : first.getKey().compareTo(
+                            second.getKey());
+                }
+            };
+
+    /**
+     * A player in the treap.
+     */
+    private static final class Node {
+        private final String playerName;
+        private final long score;
+        private final int priority;
+        private final Node left;
+        private final Node right;
+        private final int size;
+
+        private Node(String playerName, long score, Node left, Node right) {
+            this.playerName = playerName;
+            this.score = score;
+            this.priority = getPriority(playerName);
+            this.left = left;
+            this.right = right;
+            this.size = 1 + ScoreKeeperLeaderboard.size(left) + ScoreKeeperLeaderboard.size(right);
+        }
+
+        private Node withChildren(Node left, Node right) {
+            return new Node(playerName, score, left, right);
+        }
+    }
+}
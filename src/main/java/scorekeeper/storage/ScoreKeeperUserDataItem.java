@@ -1,10 +1,22 @@
 package scorekeeper.storage;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBAttribute;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBHashKey;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMarshaller;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMarshalling;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBTable;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBVersionAttribute;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -12,15 +24,96 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 /**
  * Model representing an item of the ScoreKeeperUserData table in DynamoDB for the ScoreKeeper
  * skill.
+ * <p>
+ * Games are stored as a native list of players and a native map of scores by player, so a single
+ * score can be updated in place. Large games are stored in the compact binary encoding of
+ * {@link ScoreKeeperGameDataCodec} in the Game attribute instead, and their scores are updated by
+ * saving the whole game. Items written before those layouts hold the whole game as a JSON document
+ * in the Data attribute; they are still read, and are converted the next time the game is saved.
  */
 @DynamoDBTable(tableName = "ScoreKeeperUserData")
 public class ScoreKeeperUserDataItem {
+    private static final Logger log = LoggerFactory.getLogger(ScoreKeeperUserDataItem.class);
+
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
     private String customerId;
 
+    private List<String> players;
+
+    private Map<String, Long> scores;
+
+    private ByteBuffer encodedGame;
+
     private ScoreKeeperGameData gameData;
 
+    private Long version;
+
+    private Long sequence;
+
+    /**
+     * Leaderboard of the game held by this item, or null until built. It is not stored, and is
+     * shared by the games read from the item while it is cached.
+     */
+    private volatile ScoreKeeperLeaderboard leaderboard;
+
+    /**
+     * Creates an item storing a game, in the binary encoding if the game is large and in the
+     * native layout otherwise.
+     *
+     * @param customerId
+     *            the customer id
+     * @param gameData
+     *            the game, copied into the item
+     * @return the item
+     */
+    static ScoreKeeperUserDataItem newInstance(String customerId, ScoreKeeperGameData gameData) {
+        ScoreKeeperUserDataItem item = new ScoreKeeperUserDataItem();
+        item.setCustomerId(customerId);
+        if (ScoreKeeperGameDataCodec.shouldEncode(gameData)) {
+            item.setEncodedGame(ScoreKeeperGameDataCodec.encode(gameData));
+            return item;
+        }
+
+        item.setPlayers(new ArrayList<String>(gameData.getPlayers()));
+        // every player has a score, so that a score update can require the player to exist
+        Map<String, Long> scores = new HashMap<String, Long>(gameData.getScores());
+        for (String player : gameData.getPlayers()) {
+            if (!scores.containsKey(player)) {
+                scores.put(player, Long.valueOf(0L));
+            }
+        }
+        item.setScores(scores);
+        return item;
+    }
+
+    /**
+     * Returns a copy of the game stored in this item, in any layout.
+     * <p>
+     * A game whose binary encoding cannot be decoded is logged and read as no game, so the
+     * customer can start a new game that replaces it instead of every request failing.
+     *
+     * @return the game, or null if the item holds none
+     */
+    ScoreKeeperGameData toGameData() {
+        if (players != null) {
+            ScoreKeeperGameData copy = new ScoreKeeperGameData();
+            copy.setPlayers(new ArrayList<String>(players));
+            copy.setScores(scores != null ? new HashMap<String, Long>(scores)
+                    : new HashMap<String, Long>());
+            return copy;
+        }
+        if (encodedGame != null) {
+            try {
+                return ScoreKeeperGameDataCodec.decode(encodedGame);
+            } catch (DataFormatException e) {
+                log.error("Ignoring malformed game of {}", customerId, e);
+                return null;
+            }
+        }
+        return gameData != null ? gameData.copy() : null;
+    }
+
     @DynamoDBHashKey(attributeName = "CustomerId")
     public String getCustomerId() {
         return customerId;
@@ -30,6 +123,40 @@ public class ScoreKeeperUserDataItem {
         this.customerId = customerId;
     }
 
+    @DynamoDBAttribute(attributeName = "Players")
+    public List<String> getPlayers() {
+        return players;
+    }
+
+    public void setPlayers(List<String> players) {
+        this.players = players;
+    }
+
+    @DynamoDBAttribute(attributeName = "Scores")
+    public Map<String, Long> getScores() {
+        return scores;
+    }
+
+    public void setScores(Map<String, Long> scores) {
+        this.scores = scores;
+    }
+
+    /**
+     * Returns the game of an item in the binary encoding, or null for items in other layouts.
+     */
+    @DynamoDBAttribute(attributeName = "Game")
+    public ByteBuffer getEncodedGame() {
+        return encodedGame;
+    }
+
+    public void setEncodedGame(ByteBuffer encodedGame) {
+        this.encodedGame = encodedGame;
+    }
+
+    /**
+     * Returns the game of an item in the legacy layout. Null for items in the native layout, and
+     * saving an item with a null game removes the attribute.
+     */
     @DynamoDBAttribute(attributeName = "Data")
     @DynamoDBMarshalling(marshallerClass = ScoreKeeperGameDataMarshaller.class)
     public ScoreKeeperGameData getGameData() {
@@ -40,6 +167,42 @@ public class ScoreKeeperUserDataItem {
         this.gameData = gameData;
     }
 
+    /**
+     * Returns the version of the item, incremented by {@link DynamoDBMapper} on every save. A save
+     * fails with a {@code ConditionalCheckFailedException} if the item was saved by someone else
+     * since it was loaded.
+     */
+    @DynamoDBVersionAttribute(attributeName = "Version")
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    /**
+     * Returns the sequence of the last {@link ScoreKeeperGameEventItem event} included in the
+     * game, or null if the game has no event log. Events after it are replayed when the game is
+     * loaded.
+     */
+    @DynamoDBAttribute(attributeName = "Sequence")
+    public Long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(Long sequence) {
+        this.sequence = sequence;
+    }
+
+    ScoreKeeperLeaderboard getLeaderboard() {
+        return leaderboard;
+    }
+
+    void setLeaderboard(ScoreKeeperLeaderboard leaderboard) {
+        this.leaderboard = leaderboard;
+    }
+
     /**
      * A {@link DynamoDBMarshaller} that provides marshalling and unmarshalling logic for
      * {@link ScoreKeeperGameData} values so that they can be persisted in the database as String.
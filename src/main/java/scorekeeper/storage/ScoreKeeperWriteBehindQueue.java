@@ -0,0 +1,262 @@
+package scorekeeper.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+
+/**
+ * Holds the unsaved changes to the game of each customer and writes them to DynamoDB on a short
+ * interval.
+ * <p>
+ * The queued game is authoritative until it is written: reads of a customer with a queued game
+ * are served from it. Successive changes for the same customer are coalesced, so only the latest
+ * game is written, with one save per customer. The save is conditioned on the version of the
+ * stored game the changes were applied to. If another server saved the game in the meantime, the
+ * stored game is reloaded with a consistent read and the queued changes are applied to it again,
+ * so the changes of both servers are kept. Queued games are also flushed when the JVM shuts down,
+ * and callers can flush explicitly, for instance when a session ends. A game whose write fails
+ * stays queued and is retried on the next flush.
+ */
+public class ScoreKeeperWriteBehindQueue {
+    private static final Logger log = LoggerFactory.getLogger(ScoreKeeperWriteBehindQueue.class);
+
+    /**
+     * Number of times a game is saved during a flush before leaving it for the next one, when
+     * other servers keep changing it.
+     */
+    private static final int MAX_SAVE_ATTEMPTS = 3;
+
+    private final ScoreKeeperDynamoDbClient dynamoDbClient;
+
+    /**
+     * Unsaved changes by customer id. Only accessed while holding the queue lock.
+     */
+    private final Map<String, Pending> pending = new HashMap<String, Pending>();
+
+    private final Object queueLock = new Object();
+
+    /**
+     * Serializes flushes, so an older game is never written after a newer one.
+     */
+    private final Object flushLock = new Object();
+
+    /**
+     * Creates a queue and starts flushing it in the background.
+     *
+     * @param dynamoDbClient
+     *            client used to write the games
+     * @param flushIntervalMillis
+     *            time in milliseconds between two background flushes
+     */
+    public ScoreKeeperWriteBehindQueue(final ScoreKeeperDynamoDbClient dynamoDbClient,
+            final long flushIntervalMillis) {
+        this.dynamoDbClient = dynamoDbClient;
+
+        ScheduledExecutorService executor =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "scorekeeper-write-behind");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+
+        Runtime.getRuntime().addShutdownHook(new Thread("scorekeeper-write-behind-shutdown") {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Queues a change to the game of a customer. If the customer already has a queued game, the
+     * change is applied to it; otherwise the given game is queued.
+     *
+     * @param customerId
+     *            the customer id
+     * @param gameData
+     *            the game the change was applied to; a copy is queued, so the caller may keep
+     *            changing it
+     * @param version
+     *            version of the stored game the given game was read from, or null if it was not
+     *            read from the stored game
+     * @param change
+     *            the change, applied again if the stored game changed before the queued game is
+     *            written
+     * @return a copy of the queued game, including the change
+     */
+    public ScoreKeeperGameData put(final String customerId, final ScoreKeeperGameData gameData,
+            final Long version, final ScoreKeeperDao.GameChange change) {
+        synchronized (queueLock) {
+            Pending queued = pending.get(customerId);
+            if (queued == null) {
+                queued = new Pending(gameData.copy(), version);
+                pending.put(customerId, queued);
+            } else {
+                queued.gameData = apply(queued.gameData, change);
+            }
+            queued.changes.add(change);
+            return queued.gameData.copy();
+        }
+    }
+
+    /**
+     * Returns the queued game of a customer.
+     *
+     * @param customerId
+     *            the customer id
+     * @return a copy of the queued game, or null if the customer has no unsaved game
+     */
+    public ScoreKeeperGameData get(final String customerId) {
+        synchronized (queueLock) {
+            Pending queued = pending.get(customerId);
+            return queued != null ? queued.gameData.copy() : null;
+        }
+    }
+
+    /**
+     * Writes every queued game to DynamoDB and waits for the writes to complete.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<String> customerIds;
+            synchronized (queueLock) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                customerIds = new ArrayList<String>(pending.keySet());
+            }
+
+            int failures = 0;
+            for (String customerId : customerIds) {
+                try {
+                    if (!flush(customerId)) {
+                        failures++;
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("Unable to write queued game of {}", customerId, e);
+                    failures++;
+                }
+            }
+            if (failures > 0) {
+                log.warn("Unable to write {} of {} queued games, will retry", failures,
+                        customerIds.size());
+            }
+        }
+    }
+
+    /**
+     * Writes the queued game of a customer, applying the queued changes to the stored game again
+     * if another server saved it since it was read.
+     *
+     * @return true if the game was written, false if it was left queued
+     */
+    private boolean flush(final String customerId) {
+        ScoreKeeperGameData gameData;
+        Long version;
+        List<ScoreKeeperDao.GameChange> changes;
+        synchronized (queueLock) {
+            Pending queued = pending.get(customerId);
+            gameData = queued.gameData.copy();
+            version = queued.version;
+            changes = new ArrayList<ScoreKeeperDao.GameChange>(queued.changes);
+        }
+
+        ScoreKeeperUserDataItem item;
+        for (int attempt = 1;; attempt++) {
+            item = ScoreKeeperUserDataItem.newInstance(customerId, gameData);
+            item.setVersion(version);
+            try {
+                dynamoDbClient.saveItem(item);
+                break;
+            } catch (ConditionalCheckFailedException e) {
+                if (attempt == MAX_SAVE_ATTEMPTS) {
+                    log.warn("Game of {} keeps changing, will retry", customerId);
+                    return false;
+                }
+                log.info("Game of {} was changed by another writer, applying queued changes "
+                        + "again", customerId);
+            }
+
+            ScoreKeeperUserDataItem stored = new ScoreKeeperUserDataItem();
+            stored.setCustomerId(customerId);
+            stored = dynamoDbClient.loadItem(stored, true);
+            ScoreKeeperGameData storedGameData = stored != null ? stored.toGameData() : null;
+            gameData =
+                    storedGameData != null ? storedGameData : ScoreKeeperGameData.newInstance();
+            for (ScoreKeeperDao.GameChange change : changes) {
+                gameData = apply(gameData, change);
+            }
+            version = stored != null ? stored.getVersion() : null;
+        }
+
+        // keeps the changes queued during the write, on top of the written game
+        synchronized (queueLock) {
+            Pending queued = pending.get(customerId);
+            List<ScoreKeeperDao.GameChange> newer =
+                    queued.changes.subList(changes.size(), queued.changes.size());
+            if (newer.isEmpty()) {
+                pending.remove(customerId);
+                return true;
+            }
+            Pending rebased = new Pending(gameData, item.getVersion());
+            for (ScoreKeeperDao.GameChange change : newer) {
+                rebased.gameData = apply(rebased.gameData, change);
+                rebased.changes.add(change);
+            }
+            pending.put(customerId, rebased);
+        }
+        return true;
+    }
+
+    /**
+     * Returns a copy of a game with a change applied.
+     */
+    private static ScoreKeeperGameData apply(final ScoreKeeperGameData gameData,
+            final ScoreKeeperDao.GameChange change) {
+        ScoreKeeperGame game = ScoreKeeperGame.newInstance(null, gameData.copy());
+        change.applyTo(game);
+        return game.getGameData();
+    }
+
+    /**
+     * The unsaved changes to the game of a customer.
+     */
+    private static final class Pending {
+        /**
+         * The stored game with the changes applied.
+         */
+        private ScoreKeeperGameData gameData;
+
+        /**
+         * Version of the stored game the changes were applied to, or null if unknown.
+         */
+        private final Long version;
+
+        private final List<ScoreKeeperDao.GameChange> changes =
+                new ArrayList<ScoreKeeperDao.GameChange>();
+
+        private Pending(ScoreKeeperGameData gameData, Long version) {
+            this.gameData = gameData;
+            this.version = version;
+        }
+    }
+}
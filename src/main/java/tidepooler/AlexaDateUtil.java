@@ -135,8 +135,18 @@ public final class AlexaDateUtil {
     public static String getFormattedTime(Date date) {
         Calendar dateCal = Calendar.getInstance();
         dateCal.setTime(date);
-        int hours = dateCal.get(Calendar.HOUR_OF_DAY);
-        int minutes = dateCal.get(Calendar.MINUTE);
+        return getFormattedTime(dateCal.get(Calendar.HOUR_OF_DAY), dateCal.get(Calendar.MINUTE));
+    }
+
+    /**
+     * Returns a speech formatted time, based on a period in the day. E.g. '12:35 in the afternoon'
+     *
+     * @param hours
+     *            hour of the day, from 0 to 23
+     * @param minutes
+     *            minute of the hour
+     */
+    public static String getFormattedTime(int hours, int minutes) {
         String minuteString;
 
         String periodOfDay;
@@ -150,7 +160,7 @@ public final class AlexaDateUtil {
             periodOfDay = " at night";
         }
 
-        hours = dateCal.get(Calendar.HOUR);
+        hours = hours % MIDNIGHT_HOUR;
         hours = hours == 0 ? MIDNIGHT_HOUR : hours; // handle noon and midnight
         minuteString =
                 minutes < MINUTE_TWO_DIGIT_THRESHOLD ? "0" + Integer.toString(minutes) : Integer
@@ -0,0 +1,34 @@
+/**
+    Copyright 2014-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+    Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License. A copy of the License is located at
+
+        http://aws.amazon.com/apache2.0/
+
+    or in the "license" file accompanying this file. This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package tidepooler;
+
+/**
+ * Encapsulates the return values for high tide information in a single object.
+ */
+final class HighTideValues {
+    /**
+     * Stands for a day whose predictions do not hold two high tides and a low tide, as often
+     * happens at stations with a single daily tide, so the day is not fetched again.
+     */
+    static final HighTideValues NONE = new HighTideValues(null, null, null, null, null, null);
+
+    final String firstHighTideTime, firstHighTideHeight, lowTideTime, lowTideHeight,
+            secondHighTideTime, secondHighTideHeight;
+
+    HighTideValues(String firstHighTideTime, String firstHighTideHeight, String lowTideTime,
+            String lowTideHeight, String secondHighTideTime, String secondHighTideHeight) {
+        this.firstHighTideTime = firstHighTideTime;
+        this.firstHighTideHeight = firstHighTideHeight;
+        this.lowTideTime = lowTideTime;
+        this.lowTideHeight = lowTideHeight;
+        this.secondHighTideTime = secondHighTideTime;
+        this.secondHighTideHeight = secondHighTideHeight;
+    }
+}
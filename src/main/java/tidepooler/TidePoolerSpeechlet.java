@@ -9,19 +9,12 @@
  */
 package tidepooler;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.URL;
-import java.nio.charset.Charset;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,10 +31,6 @@ import com.amazon.speech.speechlet.SpeechletResponse;
 import com.amazon.speech.ui.PlainTextOutputSpeech;
 import com.amazon.speech.ui.Reprompt;
 import com.amazon.speech.ui.SimpleCard;
-import com.amazonaws.util.json.JSONArray;
-import com.amazonaws.util.json.JSONException;
-import com.amazonaws.util.json.JSONObject;
-import com.amazonaws.util.json.JSONTokener;
 
 /**
  * This sample shows how to create a Lambda function for handling Alexa Skill requests that:
@@ -91,9 +80,6 @@ public class TidePoolerSpeechlet implements Speechlet {
     private static final String SESSION_DATE_DISPLAY = "displayDate";
     private static final String SESSION_DATE_REQUEST = "requestDateParam";
 
-    private static final String DATUM = "MLLW";
-    private static final String ENDPOINT = "http://tidesandcurrents.noaa.gov/api/datagetter";
-
     // NOAA station codes
     private static final int STATION_CODE_SEATTLE = 9447130;
     private static final int STATION_CODE_SAN_FRANCISCO = 9414290;
@@ -112,10 +98,6 @@ public class TidePoolerSpeechlet implements Speechlet {
     private static final int STATION_CODE_NEW_ORLEANS = 8761927;
     private static final int STATION_CODE_GALVESTON = 8771341;
 
-    private static final int MONTH_TWO_DIGIT_THRESHOLD = 10;
-    private static final double ROUND_TO_HALF_THRESHOLD = 0.75;
-    private static final double ROUND_DOWN_THRESHOLD = 0.25;
-
     // example city to NOAA station mapping. Can be found on: http://tidesandcurrents.noaa.gov/map/
     private static final HashMap<String, Integer> STATIONS = new HashMap<String, Integer>();
 
@@ -360,72 +342,45 @@ public class TidePoolerSpeechlet implements Speechlet {
     }
 
     /**
-     * Uses NOAA.gov API, documented at noaa.gov. Results can be verified at:
-     * http://tidesandcurrents.noaa.gov/noaatidepredictions/NOAATidesFacade.jsp?Stationid=[id] .
-     *
-     * @see <a href = "http://tidesandcurrents.noaa.gov/api/">noaa.gov</a>
-     * @throws IOException
+     * Looks up the tides of the requested day at the requested station, and tells them to the
+     * user.
      */
     private SpeechletResponse makeTideRequest(CityDateValues<String, String> cityStation,
             CityDateValues<String, String> date) {
-        String queryString =
-                String.format("?%s&station=%s&product=predictions&datum=%s&units=english"
-                        + "&time_zone=lst_ldt&format=json", date.apiValue, cityStation.apiValue,
-                        DATUM);
+        String speechOutput;
 
-        String speechOutput = "";
-
-        InputStreamReader inputStream = null;
-        BufferedReader bufferedReader = null;
-        StringBuilder builder = new StringBuilder();
-        try {
-            String line;
-            URL url = new URL(ENDPOINT + queryString);
-            inputStream = new InputStreamReader(url.openStream(), Charset.forName("US-ASCII"));
-            bufferedReader = new BufferedReader(inputStream);
-            while ((line = bufferedReader.readLine()) != null) {
-                builder.append(line);
-            }
-        } catch (IOException e) {
-            // reset builder to a blank string
-            builder.setLength(0);
-        } finally {
-            IOUtils.closeQuietly(inputStream);
-            IOUtils.closeQuietly(bufferedReader);
-        }
-
-        if (builder.length() == 0) {
+        HighTideValues highTideResponse =
+                TidePredictionStore.getInstance().getHighTides(cityStation.apiValue,
+                        date.apiValue);
+        if (highTideResponse == null) {
             speechOutput =
                     "Sorry, the National Oceanic tide service is experiencing a problem. "
                             + "Please try again later.";
+        } else if (highTideResponse == HighTideValues.NONE) {
+            speechOutput =
+                    date.speechValue + " in " + cityStation.speechValue
+                            + ", there are not two high tides, so I cannot describe them. "
+                            + "Please try another day.";
         } else {
-            try {
-                JSONObject noaaResponseObject = new JSONObject(new JSONTokener(builder.toString()));
-                if (noaaResponseObject != null) {
-                    HighTideValues highTideResponse = findHighTide(noaaResponseObject);
-                    speechOutput =
-                            new StringBuilder()
-                                    .append(date.speechValue)
-                                    .append(" in ")
-                                    .append(cityStation.speechValue)
-                                    .append(", the first high tide will be around ")
-                                    .append(highTideResponse.firstHighTideTime)
-                                    .append(", and will peak at about ")
-                                    .append(highTideResponse.firstHighTideHeight)
-                                    .append(", followed by a low tide at around ")
-                                    .append(highTideResponse.lowTideTime)
-                                    .append(" that will be about ")
-                                    .append(highTideResponse.lowTideHeight)
-                                    .append(". The second high tide will be around ")
-                                    .append(highTideResponse.secondHighTideTime)
-                                    .append(", and will peak at about ")
-                                    .append(highTideResponse.secondHighTideHeight)
-                                    .append(".")
-                                    .toString();
-                }
-            } catch (JSONException | ParseException e) {
-                log.error("Exception occoured while parsing service response.", e);
-            }
+            speechOutput =
+                    new StringBuilder()
+                            .append(date.speechValue)
+                            .append(" in ")
+                            .append(cityStation.speechValue)
+                            .append(", the first high tide will be around ")
+                            .append(highTideResponse.firstHighTideTime)
+                            .append(", and will peak at about ")
+                            .append(highTideResponse.firstHighTideHeight)
+                            .append(", followed by a low tide at around ")
+                            .append(highTideResponse.lowTideTime)
+                            .append(" that will be about ")
+                            .append(highTideResponse.lowTideHeight)
+                            .append(". The second high tide will be around ")
+                            .append(highTideResponse.secondHighTideTime)
+                            .append(", and will peak at about ")
+                            .append(highTideResponse.secondHighTideHeight)
+                            .append(".")
+                            .toString();
         }
 
         // Create the Simple card content.
@@ -440,91 +395,6 @@ public class TidePoolerSpeechlet implements Speechlet {
         return SpeechletResponse.newTellResponse(outputSpeech, card);
     }
 
-    /**
-     * Algorithm to find the 2 high tides for the day, the first of which is smaller and occurs
-     * mid-day, the second of which is larger and typically in the evening.
-     *
-     * @throws JSONException
-     * @throws ParseException
-     */
-    private HighTideValues findHighTide(JSONObject responseObject) throws JSONException,
-            ParseException {
-        JSONArray predictions = (JSONArray) responseObject.get("predictions");
-        JSONObject lastPrediction = null, firstHighTide = null, secondHighTide = null, lowTide =
-                null;
-        boolean firstTideDone = false;
-
-        for (int i = 0; i < predictions.length(); i++) {
-            JSONObject prediction = (JSONObject) predictions.get(i);
-
-            if (lastPrediction == null) {
-                lastPrediction = prediction;
-                continue;
-            }
-
-            if (isTideIncreasing(lastPrediction, prediction)) {
-                if (!firstTideDone) {
-                    firstHighTide = prediction;
-                } else {
-                    secondHighTide = prediction;
-                }
-            } else { // we're decreasing
-                if (!firstTideDone && firstHighTide != null) {
-                    firstTideDone = true;
-                } else if (secondHighTide != null) {
-                    break; // we're decreasing after having found the 2nd tide. We're done.
-                }
-
-                if (firstTideDone) {
-                    lowTide = prediction;
-                }
-            }
-            lastPrediction = prediction;
-        }
-
-        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-d HH:mm");
-        return new HighTideValues(AlexaDateUtil.getFormattedTime(dateFormat.parse(firstHighTide
-                .getString("t"))), getFormattedHeight(firstHighTide.getString("v")),
-                AlexaDateUtil.getFormattedTime(dateFormat.parse(lowTide.getString("t"))),
-                getFormattedHeight(lowTide.getString("v")),
-                AlexaDateUtil.getFormattedTime(dateFormat.parse(secondHighTide.getString("t"))),
-                getFormattedHeight(secondHighTide.getString("v")));
-    }
-
-    /**
-     * Formats the height, rounding to the nearest 1/2 foot. e.g. 4.354 -> "four and a half feet".
-     */
-    private String getFormattedHeight(String heightString) {
-        double height = Double.parseDouble(heightString);
-        boolean isNegative = false;
-        if (height < 0) {
-            height = Math.abs(height);
-            isNegative = true;
-        }
-
-        double remainder = height % 1;
-        int feet;
-        String remainderText;
-
-        if (remainder < ROUND_DOWN_THRESHOLD) {
-            remainderText = "";
-            feet = (int) Math.floor(height);
-        } else if (remainder < ROUND_TO_HALF_THRESHOLD) {
-            remainderText = " and a half";
-            feet = (int) Math.floor(height);
-        } else {
-            remainderText = "";
-            feet = (int) Math.ceil(height);
-        }
-
-        if (isNegative) {
-            feet *= -1;
-        }
-
-        String formattedHeight = feet + remainderText + " feet";
-        return formattedHeight;
-    }
-
     /**
      * Gets the city from the intent, or throws an error.
      */
@@ -558,12 +428,6 @@ public class TidePoolerSpeechlet implements Speechlet {
         return cityObject;
     }
 
-    private static boolean isTideIncreasing(JSONObject lastPrediction, JSONObject currentPrediction)
-            throws NumberFormatException, JSONException {
-        return Double.parseDouble(lastPrediction.getString("v")) < Double
-                .parseDouble(currentPrediction.getString("v"));
-    }
-
     /**
      * Gets the date from the intent, defaulting to today if none provided, or returns an error.
      */
@@ -574,8 +438,9 @@ public class TidePoolerSpeechlet implements Speechlet {
         // slots can be missing, or slots can be provided but with empty value.
         // must test for both
         if (dateSlot == null || dateSlot.getValue() == null) {
-            // default to today
-            dateObject = new CityDateValues<String, String>("Today", "date=today");
+            // default to today, at the station, which may not be known yet
+            dateObject =
+                    new CityDateValues<String, String>("Today", TidePredictionStore.TODAY);
             return dateObject;
         } else {
             DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-d");
@@ -583,26 +448,12 @@ public class TidePoolerSpeechlet implements Speechlet {
             try {
                 date = dateFormat.parse(dateSlot.getValue());
             } catch (ParseException e) {
-                date = new Date();
+                return new CityDateValues<String, String>("Today", TidePredictionStore.TODAY);
             }
 
-            Calendar calendar = Calendar.getInstance();
-            calendar.setTime(date);
-            int month = calendar.get(Calendar.MONTH) + 1;
-            String monthString =
-                    month < MONTH_TWO_DIGIT_THRESHOLD ? "0" + Integer.toString(month) : Integer
-                            .toString(month);
-            int day = calendar.get(Calendar.DATE);
-            String dayString =
-                    day < MONTH_TWO_DIGIT_THRESHOLD ? "0" + Integer.toString(day) : Integer
-                            .toString(day);
-            String requestDay =
-                    "begin_date=" + calendar.get(Calendar.YEAR) + monthString + dayString
-                            + "&range=24";
-
             dateObject =
                     new CityDateValues<String, String>(AlexaDateUtil.getFormattedDate(date),
-                            requestDay);
+                            TidePredictionStore.getRequestDate(date));
             return dateObject;
         }
     }
@@ -635,24 +486,6 @@ public class TidePoolerSpeechlet implements Speechlet {
         return SpeechletResponse.newAskResponse(outputSpeech, reprompt);
     }
 
-    /**
-     * Encapsulates the return values for high tide information in a single object.
-     */
-    private static class HighTideValues {
-        private final String firstHighTideTime, firstHighTideHeight, lowTideTime, lowTideHeight,
-                secondHighTideTime, secondHighTideHeight;
-
-        HighTideValues(String firstHighTideTime, String firstHighTideHeight, String lowTideTime,
-                String lowTideHeight, String secondHighTideTime, String secondHighTideHeight) {
-            this.firstHighTideTime = firstHighTideTime;
-            this.firstHighTideHeight = firstHighTideHeight;
-            this.lowTideTime = lowTideTime;
-            this.lowTideHeight = lowTideHeight;
-            this.secondHighTideTime = secondHighTideTime;
-            this.secondHighTideHeight = secondHighTideHeight;
-        }
-    }
-
     /**
      * Encapsulates the speech and api value for date and citystation objects.
      *
@@ -0,0 +1,435 @@
+/**
+    Copyright 2014-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+    Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License. A copy of the License is located at
+
+        http://aws.amazon.com/apache2.0/
+
+    or in the "license" file accompanying this file. This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package tidepooler;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.util.json.JSONArray;
+import com.amazonaws.util.json.JSONException;
+import com.amazonaws.util.json.JSONObject;
+import com.amazonaws.util.json.JSONTokener;
+
+import common.LoadingCache;
+import common.SkillHttpClient;
+
+/**
+ * Provides the high and low tides of a day at a NOAA station, shared by all Tide Pooler sessions.
+ * <p>
+ * Tide predictions are deterministic, so the parsed result for a station and day is cached in
+ * process and reused by every request for it. An entry expires at the local midnight ending its
+ * day, after which nobody asks for it anymore. Predictions are fetched from NOAA a week at a time:
+ * a miss requests the 7 days starting at the missing day in a single call, and every day of the
+ * window is cached, so follow-up questions about "tomorrow" or "Saturday" are served from memory.
+ * Concurrent requests for a day that is not cached yet trigger a single NOAA call. Days, including
+ * today, are in the local time of the station, as are the predictions NOAA returns.
+ * <p>
+ * The store counts the requests made for each station, and a background job keeps a rolling
+ * window of the next 7 days cached for the most requested stations, so the morning rush after
+ * midnight is served from memory. The number of stations kept warm is set with the
+ * {@code tidepooler.prefetch.stations} system property. Set {@code tidepooler.prefetch} to false to
+ * disable the background job.
+ */
+public final class TidePredictionStore {
+    private static final Logger log = LoggerFactory.getLogger(TidePredictionStore.class);
+
+    private static final String DATUM = "MLLW";
+    private static final String ENDPOINT = "http://tidesandcurrents.noaa.gov/api/datagetter";
+
+    /**
+     * Dates passed to NOAA and used as cache keys are written as yyyyMMdd, two digits per month
+     * and day.
+     */
+    private static final int MONTHS_DIVISOR = 100;
+
+    /**
+     * Number of days fetched from NOAA in a single request.
+     */
+    private static final int WINDOW_DAYS = 7;
+
+    private static final int HOURS_PER_DAY = 24;
+
+    /**
+     * Requested day standing for the current day at the station, resolved when the tides are
+     * looked up.
+     */
+    static final String TODAY = "today";
+
+    /**
+     * Time zone of each supported station, by NOAA station code.
+     */
+    private static final Map<String, TimeZone> STATION_TIME_ZONES =
+            new HashMap<String, TimeZone>();
+
+    static {
+        TimeZone pacific = TimeZone.getTimeZone("America/Los_Angeles");
+        TimeZone eastern = TimeZone.getTimeZone("America/New_York");
+        TimeZone central = TimeZone.getTimeZone("America/Chicago");
+        STATION_TIME_ZONES.put("9447130", pacific); // Seattle
+        STATION_TIME_ZONES.put("9414290", pacific); // San Francisco
+        STATION_TIME_ZONES.put("9413450", pacific); // Monterey
+        STATION_TIME_ZONES.put("9410660", pacific); // Los Angeles
+        STATION_TIME_ZONES.put("9410170", pacific); // San Diego
+        STATION_TIME_ZONES.put("8443970", eastern); // Boston
+        STATION_TIME_ZONES.put("8518750", eastern); // New York
+        STATION_TIME_ZONES.put("8638863", eastern); // Virginia Beach
+        STATION_TIME_ZONES.put("8658163", eastern); // Wilmington
+        STATION_TIME_ZONES.put("8665530", eastern); // Charleston
+        STATION_TIME_ZONES.put("8656483", eastern); // Beaufort
+        STATION_TIME_ZONES.put("8661070", eastern); // Myrtle Beach
+        STATION_TIME_ZONES.put("8723214", eastern); // Miami
+        STATION_TIME_ZONES.put("8726667", eastern); // Tampa
+        STATION_TIME_ZONES.put("8761927", central); // New Orleans
+        STATION_TIME_ZONES.put("8771341", central); // Galveston
+    }
+
+    /**
+     * Maximum number of station days kept in the cache, enough for two windows of each of the 16
+     * supported stations.
+     */
+    private static final int CACHE_MAX_SIZE = 16 * 2 * WINDOW_DAYS;
+
+    /**
+     * Default number of most requested stations kept warm by the background job.
+     */
+    private static final int DEFAULT_PREFETCH_STATIONS = 5;
+
+    /**
+     * Interval between two runs of the background prefetch job.
+     */
+    private static final long PREFETCH_INTERVAL_MINUTES = 30;
+
+    private static final TidePredictionStore INSTANCE = new TidePredictionStore();
+
+    private final LoadingCache<StationDay, HighTideValues> cache;
+
+    /**
+     * Number of requests per station since the last prefetch run.
+     */
+    private final ConcurrentMap<String, AtomicInteger> requestCounts =
+            new ConcurrentHashMap<String, AtomicInteger>();
+
+    private TidePredictionStore() {
+        cache =
+                new LoadingCache<StationDay, HighTideValues>(CACHE_MAX_SIZE, Long.MAX_VALUE,
+                        new LoadingCache.Loader<StationDay, HighTideValues>() {
+                            @Override
+                            public HighTideValues load(StationDay key) throws Exception {
+                                return loadWindow(key);
+                            }
+                        }) {
+                    @Override
+                    protected long getExpiryTime(StationDay key, HighTideValues value,
+                            long loadTime) {
+                        return getEndOfDay(key.station, key.date);
+                    }
+                };
+
+        if (Boolean.parseBoolean(System.getProperty("tidepooler.prefetch", "true"))) {
+            startPrefetch(getPrefetchStationCount());
+        }
+    }
+
+    /**
+     * Returns the store shared by all Tide Pooler sessions.
+     *
+     * @return the shared {@link TidePredictionStore}
+     */
+    public static TidePredictionStore getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the high and low tides of a day at a station, fetching them from NOAA if they are not
+     * cached.
+     *
+     * @param station
+     *            the NOAA station code
+     * @param requestDate
+     *            the day, as returned by {@link #getRequestDate(Date)}, or {@link #TODAY}
+     * @return the tides of that day, {@link HighTideValues#NONE} if the day does not have two high
+     *         tides, or null if they could not be fetched
+     */
+    HighTideValues getHighTides(String station, String requestDate) {
+        if (TODAY.equals(requestDate)) {
+            requestDate = getRequestDate(Calendar.getInstance(getTimeZone(station)));
+        }
+
+        AtomicInteger count = requestCounts.get(station);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = requestCounts.putIfAbsent(station, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+
+        try {
+            return cache.get(new StationDay(station, requestDate));
+        } catch (ExecutionException e) {
+            log.error("Unable to get tides for station {} on {}", station, requestDate,
+                    e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the key identifying a day in requests to the store.
+     *
+     * @param date
+     *            any time of the day, in server time, as parsed from a date slot
+     * @return the day, example: 20150620
+     */
+    static String getRequestDate(Date date) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        return getRequestDate(calendar);
+    }
+
+    /**
+     * Returns the key identifying the day of a calendar, in the calendar's time zone.
+     */
+    private static String getRequestDate(Calendar calendar) {
+        int day =
+                (calendar.get(Calendar.YEAR) * MONTHS_DIVISOR + calendar.get(Calendar.MONTH) + 1)
+                        * MONTHS_DIVISOR + calendar.get(Calendar.DATE);
+        return Integer.toString(day);
+    }
+
+    /**
+     * Fetches the window of days starting at the key's day, caches every other day of the window
+     * and returns the key's day. Days of the window without two high tides are cached as
+     * {@link HighTideValues#NONE}, unless NOAA returned no day at all.
+     */
+    private HighTideValues loadWindow(StationDay key) throws IOException, JSONException {
+        Map<String, HighTideValues> window = fetchHighTides(key.station, key.date);
+        if (window.isEmpty()) {
+            throw new IOException("No tides found for station " + key.station + " from "
+                    + key.date);
+        }
+        Calendar calendar = getCalendar(key.station, key.date);
+        if (calendar == null) {
+            throw new IOException("Invalid day " + key.date);
+        }
+
+        HighTideValues highTides = HighTideValues.NONE;
+        for (int i = 0; i < WINDOW_DAYS; i++) {
+            String day = getRequestDate(calendar);
+            HighTideValues values = window.get(day);
+            if (values == null) {
+                log.info("No two high tides for station {} on {}", key.station, day);
+                values = HighTideValues.NONE;
+            }
+            if (i == 0) {
+                highTides = values;
+            } else {
+                cache.put(new StationDay(key.station, day), values);
+            }
+            calendar.add(Calendar.DATE, 1);
+        }
+        return highTides;
+    }
+
+    /**
+     * Returns the time at which the given day ends at the station.
+     */
+    private static long getEndOfDay(String station, String requestDate) {
+        Calendar calendar = getCalendar(station, requestDate);
+        if (calendar == null) {
+            // not a day we can expire, so don't keep it
+            return 0;
+        }
+        calendar.add(Calendar.DATE, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Returns the start of the given day at the station, or null if it is not a day.
+     */
+    private static Calendar getCalendar(String station, String requestDate) {
+        int day;
+        try {
+            day = Integer.parseInt(requestDate);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        Calendar calendar = Calendar.getInstance(getTimeZone(station));
+        calendar.clear();
+        calendar.set(day / MONTHS_DIVISOR / MONTHS_DIVISOR, day / MONTHS_DIVISOR % MONTHS_DIVISOR
+                - 1, day % MONTHS_DIVISOR);
+        return calendar;
+    }
+
+    /**
+     * Returns the time zone of a station, or the server time zone for an unknown station.
+     */
+    private static TimeZone getTimeZone(String station) {
+        TimeZone timeZone = STATION_TIME_ZONES.get(station);
+        return timeZone != null ? timeZone : TimeZone.getDefault();
+    }
+
+    /**
+     * Starts the daemon thread that keeps today's and tomorrow's tides cached for the most
+     * requested stations.
+     */
+    private void startPrefetch(final int stationCount) {
+        ScheduledExecutorService executor =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "tidepooler-prefetch");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                prefetch(stationCount);
+            }
+        }, PREFETCH_INTERVAL_MINUTES, PREFETCH_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Makes sure the next 7 days are cached for the most requested stations. The first day that is
+     * missing is loaded, which caches the window starting at that day, so each station costs at
+     * most one NOAA call per run and usually none.
+     */
+    private void prefetch(final int stationCount) {
+        for (String station : getMostRequestedStations(stationCount)) {
+            Calendar calendar = Calendar.getInstance(getTimeZone(station));
+            for (int i = 0; i < WINDOW_DAYS; i++) {
+                StationDay key = new StationDay(station, getRequestDate(calendar));
+                if (cache.getIfPresent(key) == null) {
+                    try {
+                        cache.get(key);
+                    } catch (ExecutionException e) {
+                        log.warn("Unable to prefetch tides for station {} on {}", station,
+                                key.date, e.getCause());
+                    }
+                    break;
+                }
+                calendar.add(Calendar.DATE, 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the stations with the most requests, and halves every count so that popularity
+     * follows recent traffic.
+     */
+    private List<String> getMostRequestedStations(final int stationCount) {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (Map.Entry<String, AtomicInteger> entry : requestCounts.entrySet()) {
+            int count = entry.getValue().get();
+            if (count > 0) {
+                counts.put(entry.getKey(), count);
+            }
+            entry.getValue().addAndGet(-(count - count / 2));
+        }
+
+        List<String> stations = new ArrayList<String>(counts.keySet());
+        Collections.sort(stations, new Comparator<String>() {
+            @Override
+            public int compare(String first, String second) {
+                return counts.get(second).compareTo(counts.get(first));
+            }
+        });
+        return stations.subList(0, Math.min(stationCount, stations.size()));
+    }
+
+    /**
+     * Reads the number of stations to keep warm from the {@code tidepooler.prefetch.stations}
+     * system property.
+     */
+    private static int getPrefetchStationCount() {
+        String value = System.getProperty("tidepooler.prefetch.stations");
+        if (value == null) {
+            return DEFAULT_PREFETCH_STATIONS;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value {} for tidepooler.prefetch.stations", value);
+            return DEFAULT_PREFETCH_STATIONS;
+        }
+    }
+
+    /**
+     * Uses NOAA.gov API, documented at noaa.gov, to fetch the predictions for the window of days
+     * starting at the given day. Results can be verified at:
+     * http://tidesandcurrents.noaa.gov/noaatidepredictions/NOAATidesFacade.jsp?Stationid=[id] .
+     *
+     * @see <a href = "http://tidesandcurrents.noaa.gov/api/">noaa.gov</a>
+     * @return the tides of each day of the window, by day
+     */
+    private static Map<String, HighTideValues> fetchHighTides(String station, String beginDate)
+            throws IOException, JSONException {
+        String queryString =
+                String.format("?begin_date=%s&range=%d&station=%s&product=predictions"
+                        + "&datum=%s&units=english&time_zone=lst_ldt&format=json", beginDate,
+                        WINDOW_DAYS * HOURS_PER_DAY, station, DATUM);
+
+        String responseText =
+                SkillHttpClient.getInstance().getString(ENDPOINT + queryString,
+                        Charset.forName("US-ASCII"));
+        JSONArray predictions =
+                (JSONArray) new JSONObject(new JSONTokener(responseText)).get("predictions");
+        return TidePredictions.decode(predictions).findHighTidesByDay();
+    }
+
+    /**
+     * Cache key: a NOAA station and a day.
+     */
+    private static final class StationDay {
+        private final String station;
+        private final String date;
+
+        private StationDay(String station, String date) {
+            this.station = station;
+            this.date = date;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof StationDay)) {
+                return false;
+            }
+            StationDay that = (StationDay) other;
+            return station.equals(that.station) && date.equals(that.date);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * station.hashCode() + date.hashCode();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/**
+    Copyright 2014-2015 Amazon.com, Inc. or its affiliates. All Rights Reserved.
+
+    Licensed under the Apache License, Version 2.0 (the "License"). You may not use this file except in compliance with the License. A copy of the License is located at
+
+        http://aws.amazon.com/apache2.0/
+
+    or in the "license" file accompanying this file. This file is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the specific language governing permissions and limitations under the License.
+ */
+package tidepooler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.util.json.JSONArray;
+import com.amazonaws.util.json.JSONException;
+import com.amazonaws.util.json.JSONObject;
+
+/**
+ * Tide predictions of a station, decoded once from the NOAA response into parallel primitive
+ * arrays, so that finding the tides of a day needs no further parsing or allocation.
+ * <p>
+ * Times are stored as {@code long} values of the form yyyyMMddHHmm in station local time, so the
+ * day, hour and minute of a prediction are plain arithmetic and no date formatter is involved.
+ */
+final class TidePredictions {
+    private static final long MINUTES_DIVISOR = 100;
+    private static final long DAY_DIVISOR = 10000;
+
+    private static final double ROUND_TO_HALF_THRESHOLD = 0.75;
+    private static final double ROUND_DOWN_THRESHOLD = 0.25;
+
+    /**
+     * Prediction times, in ascending order, as yyyyMMddHHmm.
+     */
+    private final long[] times;
+
+    /**
+     * Predicted heights in feet, matching {@link #times}.
+     */
+    private final double[] heights;
+
+    private TidePredictions(long[] times, double[] heights) {
+        this.times = times;
+        this.heights = heights;
+    }
+
+    /**
+     * Decodes the "predictions" array of a NOAA datagetter response.
+     *
+     * @param predictions
+     *            the predictions, each with a "t" time like "2015-06-20 07:18" and a "v" height
+     * @return the decoded predictions
+     * @throws JSONException
+     *             if a prediction is missing its time or height
+     */
+    static TidePredictions decode(JSONArray predictions) throws JSONException {
+        int count = predictions.length();
+        long[] times = new long[count];
+        double[] heights = new double[count];
+        for (int i = 0; i < count; i++) {
+            JSONObject prediction = (JSONObject) predictions.get(i);
+            times[i] = parseTime(prediction.getString("t"));
+            heights[i] = Double.parseDouble(prediction.getString("v"));
+        }
+        return new TidePredictions(times, heights);
+    }
+
+    /**
+     * Finds the tides of every day covered by the predictions.
+     *
+     * @return the tides of each day, keyed by day as yyyyMMdd. Days without two high tides and a
+     *         low tide are left out.
+     */
+    Map<String, HighTideValues> findHighTidesByDay() {
+        Map<String, HighTideValues> highTidesByDay = new HashMap<String, HighTideValues>();
+        int from = 0;
+        while (from < times.length) {
+            long day = times[from] / DAY_DIVISOR;
+            int to = from + 1;
+            while (to < times.length && times[to] / DAY_DIVISOR == day) {
+                to++;
+            }
+            HighTideValues highTides = findHighTide(from, to);
+            if (highTides != null) {
+                highTidesByDay.put(Long.toString(day), highTides);
+            }
+            from = to;
+        }
+        return highTidesByDay;
+    }
+
+    /**
+     * Algorithm to find the 2 high tides for the day, the first of which is smaller and occurs
+     * mid-day, the second of which is larger and typically in the evening. Walks the predictions
+     * of the day once.
+     *
+     * @param from
+     *            index of the first prediction of the day
+     * @param to
+     *            index after the last prediction of the day
+     * @return the tides, or null if the predictions do not hold two high tides and a low tide
+     */
+    private HighTideValues findHighTide(int from, int to) {
+        int firstHighTide = -1, secondHighTide = -1, lowTide = -1;
+        boolean firstTideDone = false;
+
+        for (int i = from + 1; i < to; i++) {
+            if (heights[i - 1] < heights[i]) {
+                if (!firstTideDone) {
+                    firstHighTide = i;
+                } else {
+                    secondHighTide = i;
+                }
+            } else { // we're decreasing
+                if (!firstTideDone && firstHighTide >= 0) {
+                    firstTideDone = true;
+                } else if (secondHighTide >= 0) {
+                    break; // we're decreasing after having found the 2nd tide. We're done.
+                }
+
+                if (firstTideDone) {
+                    lowTide = i;
+                }
+            }
+        }
+
+        if (firstHighTide < 0 || lowTide < 0 || secondHighTide < 0) {
+            return null;
+        }
+        return new HighTideValues(getFormattedTime(firstHighTide),
+                getFormattedHeight(heights[firstHighTide]), getFormattedTime(lowTide),
+                getFormattedHeight(heights[lowTide]), getFormattedTime(secondHighTide),
+                getFormattedHeight(heights[secondHighTide]));
+    }
+
+    private String getFormattedTime(int index) {
+        long time = times[index];
+        return AlexaDateUtil.getFormattedTime((int) (time / MINUTES_DIVISOR % MINUTES_DIVISOR),
+                (int) (time % MINUTES_DIVISOR));
+    }
+
+    /**
+     * Formats the height, rounding to the nearest 1/2 foot. e.g. 4.354 -> "four and a half feet".
+     */
+    private static String getFormattedHeight(double height) {
+        boolean isNegative = false;
+        if (height < 0) {
+            height = Math.abs(height);
+            isNegative = true;
+        }
+
+        double remainder = height % 1;
+        int feet;
+        String remainderText;
+
+        if (remainder < ROUND_DOWN_THRESHOLD) {
+            remainderText = "";
+            feet = (int) Math.floor(height);
+        } else if (remainder < ROUND_TO_HALF_THRESHOLD) {
+            remainderText = " and a half";
+            feet = (int) Math.floor(height);
+        } else {
+            remainderText = "";
+            feet = (int) Math.ceil(height);
+        }
+
+        if (isNegative) {
+            feet *= -1;
+        }
+
+        String formattedHeight = feet + remainderText + " feet";
+        return formattedHeight;
+    }
+
+    /**
+     * Parses a time like "2015-06-20 07:18" into 201506200718. Fields may be one or two digits
+     * long, except for the year.
+     *
+     * @throws JSONException
+     *             if the time is malformed
+     */
+    static long parseTime(String text) throws JSONException {
+        long time = 0;
+        int fields = 0;
+        long field = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (c >= '0' && c <= '9') {
+                field = (field < 0 ? 0 : field * 10) + (c - '0');
+            } else if (field >= 0) {
+                // year, then month, day, hour and minute as two digits each
+                time = fields == 0 ? field : time * 100 + field;
+                fields++;
+                field = -1;
+            }
+        }
+        if (fields != 5) {
+            throw new JSONException("Malformed prediction time " + text);
+        }
+        return time;
+    }
+}